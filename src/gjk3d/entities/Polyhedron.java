@@ -1,9 +1,34 @@
 package gjk3d.entities;
 
+import java.util.ArrayList;
+
 public class Polyhedron extends Shape {
 
+    /**
+     * The directions used to pick the vertices of a generated inner hull. The
+     * three axes, followed by the eight corner diagonals.
+     */
+    private static final Vec3D[] INNER_HULL_DIRS = {
+            new Vec3D(1, 0, 0), new Vec3D(-1, 0, 0),
+            new Vec3D(0, 1, 0), new Vec3D(0, -1, 0),
+            new Vec3D(0, 0, 1), new Vec3D(0, 0, -1),
+            new Vec3D(1, 1, 1), new Vec3D(1, 1, -1),
+            new Vec3D(1, -1, 1), new Vec3D(1, -1, -1),
+            new Vec3D(-1, 1, 1), new Vec3D(-1, 1, -1),
+            new Vec3D(-1, -1, 1), new Vec3D(-1, -1, -1) };
+
     private Vec3D[] vertices;
 
+    /**
+     * A coarser hull which fully contains this polyhedron, or null.
+     */
+    private Polyhedron outerHull;
+
+    /**
+     * A coarser hull which is fully contained by this polyhedron, or null.
+     */
+    private Polyhedron innerHull;
+
     public Polyhedron(Vec3D[] vertices) {
         this.vertices = vertices;
     }
@@ -16,10 +41,113 @@ public class Polyhedron extends Shape {
     }
 
     /**
+     * Set the vertices of this polyhedron. Any level of detail hulls are
+     * dropped since they no longer bound the new vertices.
+     * 
      * @param vertices the vertices to set
      */
     public void setVertices(Vec3D[] vertices) {
         this.vertices = vertices;
+        this.outerHull = null;
+        this.innerHull = null;
+        bumpVersion();
+    }
+
+    /**
+     * @return the conservative outer hull, or null if there is none.
+     */
+    public Polyhedron getOuterHull() {
+        return outerHull;
+    }
+
+    /**
+     * Set the outer hull of this polyhedron. The hull must fully contain this
+     * polyhedron. It may carry its own, coarser, outer hull which forms the
+     * next level of the hierarchy. <br>
+     * The hulls decide which path a query takes, so changing them changes
+     * the version stamp. Replace a hull through this setter rather than
+     * modifying it in place.
+     * 
+     * @param outerHull the outer hull to set, or null to remove it.
+     */
+    public void setOuterHull(Polyhedron outerHull) {
+        this.outerHull = outerHull;
+        bumpVersion();
+    }
+
+    /**
+     * @return the inner hull, or null if there is none.
+     */
+    public Polyhedron getInnerHull() {
+        return innerHull;
+    }
+
+    /**
+     * Set the inner hull of this polyhedron. The hull must be fully contained
+     * by this polyhedron. Like setOuterHull(), this changes the version
+     * stamp.
+     * 
+     * @param innerHull the inner hull to set, or null to remove it.
+     */
+    public void setInnerHull(Polyhedron innerHull) {
+        this.innerHull = innerHull;
+        bumpVersion();
+    }
+
+    /**
+     * Generate both level of detail hulls for this polyhedron. <br>
+     * The outer hull is the axis aligned bounding box of the vertices. The
+     * inner hull is made of the extreme vertices along the axes and the
+     * corner diagonals. Since these are a subset of the vertices, the inner
+     * hull is always contained by this polyhedron. This changes the version
+     * stamp.
+     */
+    public void generateHulls() {
+        Vec3D min = new Vec3D(Double.MAX_VALUE, Double.MAX_VALUE,
+                Double.MAX_VALUE);
+        Vec3D max = new Vec3D(-Double.MAX_VALUE, -Double.MAX_VALUE,
+                -Double.MAX_VALUE);
+
+        for (Vec3D v : vertices) {
+            min.setX(Math.min(min.getX(), v.getX()));
+            min.setY(Math.min(min.getY(), v.getY()));
+            min.setZ(Math.min(min.getZ(), v.getZ()));
+            max.setX(Math.max(max.getX(), v.getX()));
+            max.setY(Math.max(max.getY(), v.getY()));
+            max.setZ(Math.max(max.getZ(), v.getZ()));
+        }
+
+        Vec3D[] corners = new Vec3D[8];
+        for (int i = 0; i < 8; i++) {
+            corners[i] = new Vec3D((i & 1) == 0 ? min.getX() : max.getX(),
+                    (i & 2) == 0 ? min.getY() : max.getY(),
+                    (i & 4) == 0 ? min.getZ() : max.getZ());
+        }
+
+        ArrayList<Vec3D> extremes = new ArrayList<Vec3D>(
+                INNER_HULL_DIRS.length);
+
+        for (Vec3D dir : INNER_HULL_DIRS) {
+            Vec3D v = support(dir);
+
+            // The same vertex is often extreme in several directions.
+            boolean found = false;
+            for (Vec3D e : extremes) {
+                if (e == v) {
+                    found = true;
+                    break;
+                }
+            }
+
+            if (!found) {
+                extremes.add(v);
+            }
+        }
+
+        this.outerHull = new Polyhedron(corners);
+        this.innerHull = new Polyhedron(extremes.toArray(new Vec3D[extremes
+                .size()]));
+        bumpVersion();
     }
 
     @Override
@@ -2,6 +2,11 @@ package gjk3d.entities;
 
 public abstract class Shape {
     
+    /**
+     * Incremented whenever the geometry of this shape changes.
+     */
+    private volatile long version;
+    
     /**
      * Used for GJK computation. Calculates the maximum vertex on the shape 
      * in a given direction.
@@ -10,4 +15,24 @@ public abstract class Shape {
      */
     public abstract Vec3D support(Vec3D dir);
     
+    /**
+     * Get the version stamp of this shape. The stamp changes every time the
+     * geometry of the shape is modified through one of its setters, so any
+     * result computed from this shape is only valid while it is unchanged.
+     * <br>
+     * Mutating a vector owned by the shape in place does not change the stamp.
+     * 
+     * @return the current version stamp of this shape.
+     */
+    public long getVersion() {
+        return version;
+    }
+    
+    /**
+     * Mark the geometry of this shape as modified.
+     */
+    protected void bumpVersion() {
+        version++;
+    }
+    
 }
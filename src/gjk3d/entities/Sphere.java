@@ -28,6 +28,7 @@ public class Sphere extends Shape {
      */
     public void setPos(Vec3D pos) {
         this.pos = pos;
+        bumpVersion();
     }
 
     /**
@@ -42,6 +43,7 @@ public class Sphere extends Shape {
      */
     public void setRadius(double radius) {
         this.radius = radius;
+        bumpVersion();
     }
 
     @Override
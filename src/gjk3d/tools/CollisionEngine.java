@@ -0,0 +1,21 @@
+package gjk3d.tools;
+
+import gjk3d.entities.Shape;
+
+/**
+ * Anything which can answer whether two shapes are colliding. Allows the
+ * different query front ends (plain, cached, etc) to be swapped for one
+ * another.
+ */
+public interface CollisionEngine {
+
+    /**
+     * Return whether the shapes s1 and s2 are colliding.
+     *
+     * @param s1 the first shape.
+     * @param s2 the second shape.
+     * @return true if s1 and s2 intersect, false otherwise.
+     */
+    boolean isColliding(Shape s1, Shape s2);
+
+}
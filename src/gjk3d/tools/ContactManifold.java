@@ -0,0 +1,67 @@
+package gjk3d.tools;
+
+import gjk3d.entities.Shape;
+import gjk3d.entities.Vec3D;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The set of up to four contact points between two colliding shapes, kept up
+ * to date across ticks by a {@link ContactManifoldBuilder}.
+ */
+public class ContactManifold {
+
+    public static final int MAX_POINTS = 4;
+
+    private final Shape s1, s2;
+
+    private Vec3D normal;
+
+    private List<ContactPoint> points;
+
+    ContactManifold(Shape s1, Shape s2) {
+        this.s1 = s1;
+        this.s2 = s2;
+        this.normal = new Vec3D();
+        this.points = Collections.emptyList();
+    }
+
+    /**
+     * @return the first shape.
+     */
+    public Shape getShape1() {
+        return s1;
+    }
+
+    /**
+     * @return the second shape.
+     */
+    public Shape getShape2() {
+        return s2;
+    }
+
+    /**
+     * @return the unit contact normal, pointing from the first shape towards
+     *         the second.
+     */
+    public Vec3D getNormal() {
+        return normal;
+    }
+
+    /**
+     * @return the contact points, which may not be modified.
+     */
+    public List<ContactPoint> getPoints() {
+        return points;
+    }
+
+    /**
+     * Replace the contents of this manifold.
+     */
+    void set(Vec3D normal, ArrayList<ContactPoint> points) {
+        this.normal = normal;
+        this.points = Collections.unmodifiableList(points);
+    }
+}
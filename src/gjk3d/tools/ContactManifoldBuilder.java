@@ -0,0 +1,661 @@
+package gjk3d.tools;
+
+import gjk3d.entities.Polyhedron;
+import gjk3d.entities.Shape;
+import gjk3d.entities.Vec3D;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Builds and maintains contact manifolds for colliding pairs of shapes. <br>
+ * The contact normal comes from EPA. The vertices of each shape which lie
+ * within a tolerance of its support plane along the normal form its
+ * supporting feature (a vertex, an edge or a face). Both features are
+ * projected onto the contact plane and clipped against each other, and the
+ * corners of their overlap become the contact points. Each point keeps how far
+ * along the normal both surfaces lie there, so its depth is its own rather
+ * than the single depth found by EPA. <br>
+ * Manifolds are kept between calls to update(). A new point which comes from
+ * the same features as an old one, or lies close to it, takes over the old
+ * point's solver state as long as it has not moved further than the
+ * persistence threshold. Any other old points are dropped. <br>
+ * A manifold is not dropped as soon as its shapes stop penetrating. While they
+ * stay within the breaking distance of each other along the last normal, the
+ * contacts are rebuilt along that normal so the solver keeps its warm start
+ * through resting and touching contact. Points further apart than the
+ * breaking distance are dropped, and the manifold goes once none are left.
+ */
+public class ContactManifoldBuilder {
+
+    private final EPACalculator epa;
+
+    private final HashMap<ShapePair, ContactManifold> manifolds =
+            new HashMap<ShapePair, ContactManifold>();
+
+    /**
+     * How far a vertex may be from the support plane and still be part of the
+     * supporting feature. Also used when testing points against features.
+     */
+    private double featureTolerance = 1e-4;
+
+    /**
+     * How far a point may move between updates and still persist.
+     */
+    private double persistenceThreshold = 0.05;
+
+    /**
+     * How far apart the shapes may be at a point along the contact normal
+     * before the point, or the whole manifold, is dropped.
+     */
+    private double breakingDistance = 0.02;
+
+    /**
+     * Create a new builder which uses 'gjk' to detect collisions.
+     *
+     * @param gjk the calculator used to detect collisions.
+     */
+    public ContactManifoldBuilder(GJKCalculator gjk) {
+        this.epa = new EPACalculator(gjk);
+    }
+
+    /**
+     * Bring the manifold for the shapes s1 and s2 up to date. If they are no
+     * longer penetrating but a manifold already exists, it is rebuilt along
+     * its last normal and kept as long as some of its points are within the
+     * breaking distance. Otherwise it is dropped.
+     *
+     * @param s1 the first shape.
+     * @param s2 the second shape.
+     * @return the updated manifold, or null if s1 and s2 have no contacts.
+     */
+    public ContactManifold update(Shape s1, Shape s2) {
+
+        ShapePair key = new ShapePair(s1, s2);
+        Vec3D penetration = epa.getPenetration(s1, s2);
+        ContactManifold manifold = manifolds.get(key);
+
+        boolean penetrating = penetration != null
+                && penetration.getSquaredLength() > 0;
+
+        if (!penetrating && manifold == null) {
+            // Without a previous normal there is nothing to build along.
+            return null;
+        }
+
+        Vec3D normal = penetrating ? penetration.getNormalized()
+                : manifold.getNormal();
+        ArrayList<ContactPoint> points = generateContacts(s1, s2, normal,
+                penetrating);
+
+        // Drop the points which have come apart along the normal.
+        for (int i = points.size() - 1; i >= 0; i--) {
+            if (-points.get(i).getDepth() > breakingDistance) {
+                points.remove(i);
+            }
+        }
+
+        if (points.isEmpty()) {
+            manifolds.remove(key);
+            return null;
+        }
+
+        if (manifold == null) {
+            manifold = new ContactManifold(s1, s2);
+            manifolds.put(key, manifold);
+        }
+        else {
+            persistPoints(manifold.getPoints(), points);
+        }
+
+        manifold.set(normal, points);
+
+        return manifold;
+    }
+
+    /**
+     * Get the manifold last built for the shapes s1 and s2.
+     *
+     * @param s1 the first shape.
+     * @param s2 the second shape.
+     * @return the manifold, or null if there is none.
+     */
+    public ContactManifold getManifold(Shape s1, Shape s2) {
+        return manifolds.get(new ShapePair(s1, s2));
+    }
+
+    /**
+     * Drop the manifold for the shapes s1 and s2, for example once the pair
+     * leaves the broad phase.
+     *
+     * @param s1 the first shape.
+     * @param s2 the second shape.
+     */
+    public void remove(Shape s1, Shape s2) {
+        manifolds.remove(new ShapePair(s1, s2));
+    }
+
+    /**
+     * Drop every manifold.
+     */
+    public void clear() {
+        manifolds.clear();
+    }
+
+    /**
+     * @return the number of manifolds held.
+     */
+    public int size() {
+        return manifolds.size();
+    }
+
+    /**
+     * @return the featureTolerance
+     */
+    public double getFeatureTolerance() {
+        return featureTolerance;
+    }
+
+    /**
+     * @param featureTolerance the featureTolerance to set
+     */
+    public void setFeatureTolerance(double featureTolerance) {
+        this.featureTolerance = featureTolerance;
+    }
+
+    /**
+     * @return the persistenceThreshold
+     */
+    public double getPersistenceThreshold() {
+        return persistenceThreshold;
+    }
+
+    /**
+     * @param persistenceThreshold the persistenceThreshold to set
+     */
+    public void setPersistenceThreshold(double persistenceThreshold) {
+        this.persistenceThreshold = persistenceThreshold;
+    }
+
+    /**
+     * @return the breakingDistance
+     */
+    public double getBreakingDistance() {
+        return breakingDistance;
+    }
+
+    /**
+     * @param breakingDistance the breakingDistance to set
+     */
+    public void setBreakingDistance(double breakingDistance) {
+        this.breakingDistance = breakingDistance;
+    }
+
+    /**
+     * Carry the solver state of each old point over to the new point which
+     * replaces it. A new point is matched to the old point with the same
+     * features, or failing that to the nearest old point, as long as it lies
+     * within the persistence threshold.
+     */
+    private void persistPoints(List<ContactPoint> oldPoints,
+            ArrayList<ContactPoint> newPoints) {
+
+        double maxDistSq = persistenceThreshold * persistenceThreshold;
+        boolean[] used = new boolean[oldPoints.size()];
+
+        for (ContactPoint p : newPoints) {
+            int match = -1;
+            double matchDistSq = maxDistSq;
+
+            for (int i = 0; i < oldPoints.size(); i++) {
+                if (used[i]) {
+                    continue;
+                }
+
+                ContactPoint old = oldPoints.get(i);
+                double distSq = Vec3D.sub(p.getPosition(), old.getPosition())
+                        .getSquaredLength();
+
+                if (distSq > maxDistSq) {
+                    continue;
+                }
+
+                if (old.getFeatureId() == p.getFeatureId()) {
+                    match = i;
+                    break;
+                }
+
+                if (distSq <= matchDistSq) {
+                    match = i;
+                    matchDistSq = distSq;
+                }
+            }
+
+            if (match >= 0) {
+                used[match] = true;
+                p.persistFrom(oldPoints.get(match));
+            }
+        }
+    }
+
+    /**
+     * Generate at most four contact points for the shapes s1 and s2 by
+     * clipping their supporting features against each other.
+     *
+     * @param normal the unit contact normal, from s1 towards s2.
+     * @param penetrating whether s1 and s2 penetrate along the normal. If not,
+     *            features which no longer overlap give no points at all.
+     */
+    private ArrayList<ContactPoint> generateContacts(Shape s1, Shape s2,
+            Vec3D normal, boolean penetrating) {
+
+        // Build a basis (u, v) for the contact plane, starting from the axis
+        // least aligned with the normal.
+        Vec3D axis = Math.abs(normal.getX()) < 0.57 ? new Vec3D(1, 0, 0)
+                : new Vec3D(0, 1, 0);
+        Vec3D u = normal.cross(axis).getNormalized();
+        Vec3D v = normal.cross(u);
+
+        // The support planes of each shape, as distances along the normal.
+        // s1 reaches furthest towards s2 at planeA, and s2 towards s1 at
+        // planeB.
+        double planeA = s1.support(normal).dot(normal);
+        double planeB = s2.support(normal.getNegated()).dot(normal);
+
+        ArrayList<FeaturePoint> hullA = getConvexHull(getFeature(s1, normal,
+                u, v, true, planeB));
+        ArrayList<FeaturePoint> hullB = getConvexHull(getFeature(s2, normal,
+                u, v, false, planeA));
+
+        ArrayList<FeaturePoint> candidates = clipFeatures(hullA, hullB);
+
+        if (candidates.isEmpty()) {
+            // Clipping found no overlap. When penetrating this only happens
+            // through rounding, otherwise the shapes may have slid off each
+            // other, unless both features are single points close together.
+            // Fall back to a single point between the two features.
+            FeaturePoint a = hullA.get(0);
+            FeaturePoint b = hullB.get(0);
+            double dx = a.x - b.x, dy = a.y - b.y;
+
+            if (!penetrating && (hullA.size() > 1 || hullB.size() > 1
+                    || dx * dx + dy * dy > breakingDistance
+                            * breakingDistance)) {
+                return new ArrayList<ContactPoint>();
+            }
+
+            candidates.add(new FeaturePoint((a.x + b.x) / 2,
+                    (a.y + b.y) / 2, a.zA, b.zB, a.featureA, b.featureB));
+        }
+
+        candidates = reducePoints(candidates);
+
+        ArrayList<ContactPoint> points = new ArrayList<ContactPoint>(
+                candidates.size());
+
+        for (FeaturePoint p : candidates) {
+            // Midway between the two surfaces at this point.
+            double mid = (p.zA + p.zB) / 2;
+
+            Vec3D pos = new Vec3D(
+                    u.getX() * p.x + v.getX() * p.y + normal.getX() * mid,
+                    u.getY() * p.x + v.getY() * p.y + normal.getY() * mid,
+                    u.getZ() * p.x + v.getZ() * p.y + normal.getZ() * mid);
+
+            points.add(new ContactPoint(pos, p.zA - p.zB, p.featureA,
+                    p.featureB));
+        }
+
+        return points;
+    }
+
+    /**
+     * Get the supporting feature of the shape s facing the other shape,
+     * projected onto the plane spanned by u and v.
+     *
+     * @param normal the contact normal, from the first shape to the second.
+     * @param first whether s is the first shape of the pair.
+     * @param otherPlane the support plane of the other shape along the
+     *            normal.
+     */
+    private ArrayList<FeaturePoint> getFeature(Shape s, Vec3D normal, Vec3D u,
+            Vec3D v, boolean first, double otherPlane) {
+
+        ArrayList<FeaturePoint> feature = new ArrayList<FeaturePoint>();
+        Vec3D dir = first ? normal : normal.getNegated();
+
+        if (s instanceof Polyhedron) {
+            Vec3D[] vertices = ((Polyhedron) s).getVertices();
+            double max = s.support(dir).dot(dir);
+
+            for (int i = 0; i < vertices.length; i++) {
+                if (vertices[i].dot(dir) >= max - featureTolerance) {
+                    feature.add(project(vertices[i], normal, u, v, i, first,
+                            otherPlane));
+                }
+            }
+        }
+        else {
+            // Curved shapes only ever touch at a single point.
+            feature.add(project(s.support(dir), normal, u, v, 0, first,
+                    otherPlane));
+        }
+
+        return feature;
+    }
+
+    /**
+     * Project the vertex p of a supporting feature onto the contact plane.
+     * The surface of the other shape is taken to lie on its support plane.
+     */
+    private FeaturePoint project(Vec3D p, Vec3D normal, Vec3D u, Vec3D v,
+            int id, boolean first, double otherPlane) {
+        if (first) {
+            return new FeaturePoint(p.dot(u), p.dot(v), p.dot(normal),
+                    otherPlane, id, ContactPoint.FACE_FEATURE);
+        }
+        return new FeaturePoint(p.dot(u), p.dot(v), otherPlane, p.dot(normal),
+                ContactPoint.FACE_FEATURE, id);
+    }
+
+    /**
+     * Get the 2D convex hull of the points using the monotone chain method.
+     * Collinear points are dropped.
+     *
+     * @return the corners of the hull in counter clockwise order. A single
+     *         point or the two ends of a segment if the points do not span an
+     *         area.
+     */
+    private ArrayList<FeaturePoint> getConvexHull(
+            ArrayList<FeaturePoint> points) {
+
+        ArrayList<FeaturePoint> sorted = new ArrayList<FeaturePoint>(points);
+
+        // Insertion sort, since features are small.
+        for (int i = 1; i < sorted.size(); i++) {
+            FeaturePoint p = sorted.get(i);
+            int j = i - 1;
+            while (j >= 0 && (sorted.get(j).x > p.x
+                    || (sorted.get(j).x == p.x && sorted.get(j).y > p.y))) {
+                sorted.set(j + 1, sorted.get(j));
+                j--;
+            }
+            sorted.set(j + 1, p);
+        }
+
+        ArrayList<FeaturePoint> hull = new ArrayList<FeaturePoint>();
+
+        // Lower hull, then upper hull.
+        for (int pass = 0; pass < 2; pass++) {
+            int start = hull.size();
+
+            for (int k = 0; k < sorted.size(); k++) {
+                FeaturePoint p = sorted.get(pass == 0 ? k : sorted.size() - 1
+                        - k);
+
+                while (hull.size() >= start + 2
+                        && cross(hull.get(hull.size() - 2),
+                                hull.get(hull.size() - 1), p) <= 0) {
+                    hull.remove(hull.size() - 1);
+                }
+                hull.add(p);
+            }
+
+            // The last point is the first point of the next chain.
+            hull.remove(hull.size() - 1);
+        }
+
+        // Merge corners which are closer together than the tolerance.
+        ArrayList<FeaturePoint> merged = new ArrayList<FeaturePoint>();
+        for (FeaturePoint p : hull) {
+            if (!containsNear(merged, p)) {
+                merged.add(p);
+            }
+        }
+
+        if (merged.isEmpty()) {
+            merged.add(sorted.get(0));
+        }
+
+        return merged;
+    }
+
+    /**
+     * Find the corners of the overlap of the two convex features. These are
+     * the corners of each feature which lie inside the other, and the points
+     * where their edges cross.
+     */
+    private ArrayList<FeaturePoint> clipFeatures(ArrayList<FeaturePoint> hullA,
+            ArrayList<FeaturePoint> hullB) {
+
+        ArrayList<FeaturePoint> points = new ArrayList<FeaturePoint>();
+
+        for (FeaturePoint p : hullA) {
+            if (isInside(hullB, p)) {
+                addUnique(points, p);
+            }
+        }
+
+        for (FeaturePoint p : hullB) {
+            if (isInside(hullA, p)) {
+                addUnique(points, p);
+            }
+        }
+
+        int edgesA = hullA.size() < 3 ? hullA.size() - 1 : hullA.size();
+        int edgesB = hullB.size() < 3 ? hullB.size() - 1 : hullB.size();
+
+        for (int i = 0; i < edgesA; i++) {
+            FeaturePoint a1 = hullA.get(i);
+            FeaturePoint a2 = hullA.get((i + 1) % hullA.size());
+
+            for (int j = 0; j < edgesB; j++) {
+                FeaturePoint b1 = hullB.get(j);
+                FeaturePoint b2 = hullB.get((j + 1) % hullB.size());
+
+                double rx = a2.x - a1.x, ry = a2.y - a1.y;
+                double sx = b2.x - b1.x, sy = b2.y - b1.y;
+                double denom = rx * sy - ry * sx;
+
+                // Parallel edges only overlap at corners, found above.
+                if (denom == 0) {
+                    continue;
+                }
+
+                double qx = b1.x - a1.x, qy = b1.y - a1.y;
+                double t = (qx * sy - qy * sx) / denom;
+                double s = (qx * ry - qy * rx) / denom;
+
+                if (t >= 0 && t <= 1 && s >= 0 && s <= 1) {
+                    // Both surfaces are known here, from along each edge.
+                    double zA = a1.zA + t * (a2.zA - a1.zA);
+                    double zB = b1.zB + s * (b2.zB - b1.zB);
+
+                    addUnique(points, new FeaturePoint(a1.x + t * rx, a1.y
+                            + t * ry, zA, zB, a1.featureA
+                            | ContactPoint.EDGE_FEATURE, b1.featureB
+                            | ContactPoint.EDGE_FEATURE));
+                }
+            }
+        }
+
+        return points;
+    }
+
+    /**
+     * Keep the (up to) four points which span the largest area. The first
+     * point is kept, then the point furthest from it, then the points forming
+     * the largest triangles on either side of the line between them.
+     */
+    private ArrayList<FeaturePoint> reducePoints(
+            ArrayList<FeaturePoint> points) {
+
+        if (points.size() <= ContactManifold.MAX_POINTS) {
+            return points;
+        }
+
+        FeaturePoint p0 = points.get(0);
+
+        FeaturePoint p1 = null;
+        double best = -1;
+        for (FeaturePoint p : points) {
+            double dx = p.x - p0.x, dy = p.y - p0.y;
+            double distSq = dx * dx + dy * dy;
+            if (distSq > best) {
+                best = distSq;
+                p1 = p;
+            }
+        }
+
+        FeaturePoint left = null, right = null;
+        double maxArea = 0, minArea = 0;
+        for (FeaturePoint p : points) {
+            double area = cross(p0, p1, p);
+            if (area > maxArea) {
+                maxArea = area;
+                left = p;
+            }
+            else if (area < minArea) {
+                minArea = area;
+                right = p;
+            }
+        }
+
+        ArrayList<FeaturePoint> reduced = new ArrayList<FeaturePoint>(
+                ContactManifold.MAX_POINTS);
+        reduced.add(p0);
+        reduced.add(p1);
+        if (left != null) {
+            reduced.add(left);
+        }
+        if (right != null) {
+            reduced.add(right);
+        }
+
+        return reduced;
+    }
+
+    /**
+     * Return whether the point p lies inside (or within the tolerance of) the
+     * convex hull 'hull'.
+     */
+    private boolean isInside(ArrayList<FeaturePoint> hull, FeaturePoint p) {
+
+        if (hull.size() == 1) {
+            return isNear(hull.get(0), p);
+        }
+
+        if (hull.size() == 2) {
+            FeaturePoint a = hull.get(0);
+            FeaturePoint b = hull.get(1);
+
+            double dx = b.x - a.x, dy = b.y - a.y;
+            double t = ((p.x - a.x) * dx + (p.y - a.y) * dy)
+                    / (dx * dx + dy * dy);
+            t = Math.max(0, Math.min(1, t));
+
+            return isNear(new FeaturePoint(a.x + t * dx, a.y + t * dy, 0, 0, 0,
+                    0), p);
+        }
+
+        for (int i = 0; i < hull.size(); i++) {
+            FeaturePoint a = hull.get(i);
+            FeaturePoint b = hull.get((i + 1) % hull.size());
+
+            double len = Math.sqrt((b.x - a.x) * (b.x - a.x) + (b.y - a.y)
+                    * (b.y - a.y));
+
+            if (cross(a, b, p) < -featureTolerance * len) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void addUnique(ArrayList<FeaturePoint> points, FeaturePoint p) {
+        if (!containsNear(points, p)) {
+            points.add(p);
+        }
+    }
+
+    private boolean containsNear(ArrayList<FeaturePoint> points,
+            FeaturePoint p) {
+        for (FeaturePoint q : points) {
+            if (isNear(q, p)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isNear(FeaturePoint a, FeaturePoint b) {
+        double dx = a.x - b.x, dy = a.y - b.y;
+        return dx * dx + dy * dy <= featureTolerance * featureTolerance;
+    }
+
+    /**
+     * @return twice the signed area of the triangle abc. Positive if it is
+     *         counter clockwise.
+     */
+    private static double cross(FeaturePoint a, FeaturePoint b,
+            FeaturePoint c) {
+        return (b.x - a.x) * (c.y - a.y) - (b.y - a.y) * (c.x - a.x);
+    }
+}
+
+/**
+ * A point of a supporting feature projected onto the contact plane, along
+ * with the features of each shape it came from.
+ */
+class FeaturePoint {
+
+    final double x, y;
+
+    /**
+     * Where the surfaces of the first and second shape lie along the contact
+     * normal at this point.
+     */
+    final double zA, zB;
+
+    final int featureA, featureB;
+
+    FeaturePoint(double x, double y, double zA, double zB, int featureA,
+            int featureB) {
+        this.x = x;
+        this.y = y;
+        this.zA = zA;
+        this.zB = zB;
+        this.featureA = featureA;
+        this.featureB = featureB;
+    }
+}
+
+/**
+ * An ordered pair of shapes, compared by identity.
+ */
+class ShapePair {
+
+    final Shape s1, s2;
+
+    ShapePair(Shape s1, Shape s2) {
+        this.s1 = s1;
+        this.s2 = s2;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ShapePair)) {
+            return false;
+        }
+        ShapePair other = (ShapePair) o;
+        return s1 == other.s1 && s2 == other.s2;
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(s1) * 31
+                + System.identityHashCode(s2);
+    }
+}
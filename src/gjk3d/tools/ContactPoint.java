@@ -0,0 +1,108 @@
+package gjk3d.tools;
+
+import gjk3d.entities.Vec3D;
+
+/**
+ * A single point of contact between two shapes, as part of a
+ * {@link ContactManifold}. <br>
+ * Each point records which features of the two shapes produced it. A feature
+ * is either a vertex index, an edge given by the index of its starting vertex
+ * with {@link #EDGE_FEATURE} set, or {@link #FACE_FEATURE} when the point lies
+ * inside the supporting face of that shape.
+ */
+public class ContactPoint {
+
+    /**
+     * Set on a feature when it refers to an edge rather than a vertex.
+     */
+    public static final int EDGE_FEATURE = 1 << 30;
+
+    /**
+     * The feature of a point which lies inside a supporting face.
+     */
+    public static final int FACE_FEATURE = -1;
+
+    private final Vec3D position;
+
+    private final double depth;
+
+    private final int featureA, featureB;
+
+    private double normalImpulse;
+
+    private int age;
+
+    ContactPoint(Vec3D position, double depth, int featureA, int featureB) {
+        this.position = position;
+        this.depth = depth;
+        this.featureA = featureA;
+        this.featureB = featureB;
+    }
+
+    /**
+     * @return the position of the contact, midway between the two surfaces.
+     */
+    public Vec3D getPosition() {
+        return position;
+    }
+
+    /**
+     * @return how deep the shapes penetrate at this point, along the contact
+     *         normal. Negative if the surfaces are slightly apart here, which
+     *         can happen on features that are not quite parallel.
+     */
+    public double getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return the feature of the first shape this point came from.
+     */
+    public int getFeatureA() {
+        return featureA;
+    }
+
+    /**
+     * @return the feature of the second shape this point came from.
+     */
+    public int getFeatureB() {
+        return featureB;
+    }
+
+    /**
+     * @return both features packed into a single id.
+     */
+    public long getFeatureId() {
+        return ((long) featureA << 32) | (featureB & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @return the impulse a solver applied at this point, carried over from
+     *         previous ticks for as long as the point persists.
+     */
+    public double getNormalImpulse() {
+        return normalImpulse;
+    }
+
+    /**
+     * @param normalImpulse the normalImpulse to set
+     */
+    public void setNormalImpulse(double normalImpulse) {
+        this.normalImpulse = normalImpulse;
+    }
+
+    /**
+     * @return the number of updates this point has persisted through.
+     */
+    public int getAge() {
+        return age;
+    }
+
+    /**
+     * Carry the solver state of the point 'old' over to this point.
+     */
+    void persistFrom(ContactPoint old) {
+        this.normalImpulse = old.normalImpulse;
+        this.age = old.age + 1;
+    }
+}
@@ -0,0 +1,358 @@
+package gjk3d.tools;
+
+import gjk3d.entities.Shape;
+import gjk3d.entities.Sphere;
+import gjk3d.entities.Vec3D;
+
+import java.util.ArrayList;
+
+/**
+ * Finds how far two colliding shapes penetrate each other using the expanding
+ * polytope algorithm. The GJK simplex enclosing the origin is grown into a
+ * polytope which matches the minkowski difference of the shapes ever more
+ * closely near the origin, until the face closest to the origin lies on the
+ * boundary of the difference. <br>
+ * Pairs of spheres are solved directly.
+ */
+public class EPACalculator {
+
+    /**
+     * How close the polytope must get to the minkowski difference to stop,
+     * relative to the distance of the closest face from the origin.
+     */
+    private static final double TOLERANCE = 1e-6;
+
+    /**
+     * How far a point must lie off the current simplex, relative to the size
+     * of the simplex, to count as adding a dimension to it.
+     */
+    private static final double FLAT_TOLERANCE = 1e-9;
+
+    private static final int MAX_ITERATIONS = 64;
+
+    private final GJKCalculator gjk;
+
+    /**
+     * Create a new EPA calculator which uses 'gjk' to detect collisions.
+     *
+     * @param gjk the calculator used to find the initial simplex.
+     */
+    public EPACalculator(GJKCalculator gjk) {
+        this.gjk = gjk;
+    }
+
+    /**
+     * Get the penetration of the shapes s1 and s2. The result points from s1
+     * towards s2, and its length is the distance s2 must be moved along it to
+     * separate the shapes.
+     *
+     * @param s1 the first shape.
+     * @param s2 the second shape.
+     * @return the penetration vector, a zero vector if the shapes only touch,
+     *         or null if they do not collide.
+     */
+    public Vec3D getPenetration(Shape s1, Shape s2) {
+
+        if (s1 instanceof Sphere && s2 instanceof Sphere) {
+            return getSpherePenetration((Sphere) s1, (Sphere) s2);
+        }
+
+        ArrayList<Vec3D> simplex = gjk.getCollisionSimplex(s1, s2);
+
+        if (simplex == null) {
+            return null;
+        }
+
+        simplex = new ArrayList<Vec3D>(simplex);
+
+        if (!expandSimplex(s1, s2, simplex)) {
+            // The minkowski difference is flat, so the shapes only touch.
+            return new Vec3D();
+        }
+
+        Vec3D interior = Vec3D.add(Vec3D.add(simplex.get(0), simplex.get(1)),
+                Vec3D.add(simplex.get(2), simplex.get(3)));
+        interior.scaleBy(0.25);
+
+        ArrayList<EPAFace> faces = new ArrayList<EPAFace>();
+        addFace(faces, simplex.get(0), simplex.get(1), simplex.get(2),
+                interior);
+        addFace(faces, simplex.get(0), simplex.get(1), simplex.get(3),
+                interior);
+        addFace(faces, simplex.get(0), simplex.get(2), simplex.get(3),
+                interior);
+        addFace(faces, simplex.get(1), simplex.get(2), simplex.get(3),
+                interior);
+
+        if (faces.size() < 4) {
+            // The tetrahedron has no volume.
+            return new Vec3D();
+        }
+
+        EPAFace closest = getClosestFace(faces);
+
+        for (int i = 0; i < MAX_ITERATIONS; i++) {
+
+            Vec3D p = getSupport(s1, s2, closest.normal);
+
+            // The closest face can't be pushed out any further.
+            if (p.dot(closest.normal) - closest.dist <= TOLERANCE
+                    * Math.abs(closest.dist)) {
+                break;
+            }
+
+            // Remove every face p can see, keeping the edges along the
+            // boundary of the hole they leave.
+            ArrayList<Vec3D[]> horizon = new ArrayList<Vec3D[]>();
+
+            for (int j = faces.size() - 1; j >= 0; j--) {
+                EPAFace f = faces.get(j);
+
+                if (f.normal.dot(Vec3D.sub(p, f.a)) > 0) {
+                    addHorizonEdge(horizon, f.a, f.b);
+                    addHorizonEdge(horizon, f.b, f.c);
+                    addHorizonEdge(horizon, f.c, f.a);
+                    faces.remove(j);
+                }
+            }
+
+            // Close the hole with faces joining the boundary to p.
+            for (Vec3D[] edge : horizon) {
+                addFace(faces, edge[0], edge[1], p, interior);
+            }
+
+            if (faces.isEmpty()) {
+                // Only rounding gets here. The last closest face is still the
+                // best estimate.
+                break;
+            }
+
+            closest = getClosestFace(faces);
+        }
+
+        Vec3D penetration = closest.normal.getNormalized();
+        penetration.scaleBy(Math.max(closest.dist, 0));
+
+        return penetration;
+    }
+
+    /**
+     * Get the penetration of two spheres directly.
+     *
+     * @return the penetration vector, or null if they do not collide.
+     */
+    private Vec3D getSpherePenetration(Sphere s1, Sphere s2) {
+
+        Vec3D between = Vec3D.sub(s2.getPos(), s1.getPos());
+        double dist = between.getLength();
+        double depth = s1.getRadius() + s2.getRadius() - dist;
+
+        if (depth < 0) {
+            return null;
+        }
+
+        // Concentric spheres can be separated in any direction.
+        Vec3D penetration = dist == 0 ? new Vec3D(1, 0, 0) : between
+                .getNormalized();
+        penetration.scaleBy(depth);
+
+        return penetration;
+    }
+
+    /**
+     * Turn the simplex GJK finished with into a tetrahedron. GJK stops with a
+     * smaller or flat simplex when the origin lies on it, so any points which
+     * don't add a dimension are dropped, and support points are searched for
+     * off the remaining point, line or plane until there are four.
+     *
+     * @return false if no point of the minkowski difference lies off the
+     *         simplex, meaning the shapes only touch.
+     */
+    private boolean expandSimplex(Shape s1, Shape s2,
+            ArrayList<Vec3D> simplex) {
+
+        double scale = 0;
+        for (Vec3D p : simplex) {
+            scale = Math.max(scale, p.getLength());
+        }
+
+        ArrayList<Vec3D> points = new ArrayList<Vec3D>(4);
+        for (Vec3D p : simplex) {
+            if (addsDimension(points, p, scale)) {
+                points.add(p);
+            }
+        }
+
+        while (points.size() < 4) {
+            Vec3D found = null;
+
+            for (Vec3D dir : getOffSimplexDirs(points)) {
+                Vec3D p = getSupport(s1, s2, dir);
+
+                if (addsDimension(points, p, scale)) {
+                    found = p;
+                    break;
+                }
+            }
+
+            if (found == null) {
+                return false;
+            }
+
+            points.add(found);
+            scale = Math.max(scale, found.getLength());
+        }
+
+        simplex.clear();
+        simplex.addAll(points);
+
+        return true;
+    }
+
+    /**
+     * Get directions which lead off the point, line or plane spanned by the
+     * points 'points'. If the minkowski difference has any point off it, the
+     * support point in one of these directions is such a point.
+     */
+    private Vec3D[] getOffSimplexDirs(ArrayList<Vec3D> points) {
+
+        if (points.size() == 1) {
+            return new Vec3D[] { new Vec3D(1, 0, 0), new Vec3D(-1, 0, 0),
+                    new Vec3D(0, 1, 0), new Vec3D(0, -1, 0),
+                    new Vec3D(0, 0, 1), new Vec3D(0, 0, -1) };
+        }
+
+        Vec3D ab = Vec3D.sub(points.get(1), points.get(0));
+
+        if (points.size() == 2) {
+            // Two directions perpendicular to the line, and to each other.
+            Vec3D axis = Math.abs(ab.getX()) < Math.abs(ab.getY())
+                    ? new Vec3D(1, 0, 0) : new Vec3D(0, 1, 0);
+            Vec3D u = ab.cross(axis);
+            Vec3D v = ab.cross(u);
+
+            return new Vec3D[] { u, u.getNegated(), v, v.getNegated() };
+        }
+
+        Vec3D norm = ab.cross(Vec3D.sub(points.get(2), points.get(0)));
+
+        return new Vec3D[] { norm, norm.getNegated() };
+    }
+
+    /**
+     * Return whether the point p lies off the point, line or plane spanned by
+     * the points 'points', by more than the tolerance at the size 'scale'.
+     */
+    private boolean addsDimension(ArrayList<Vec3D> points, Vec3D p,
+            double scale) {
+
+        double tolerance = FLAT_TOLERANCE * scale;
+
+        if (points.isEmpty()) {
+            return true;
+        }
+
+        Vec3D ap = Vec3D.sub(p, points.get(0));
+
+        if (points.size() == 1) {
+            return ap.getLength() > tolerance;
+        }
+
+        Vec3D ab = Vec3D.sub(points.get(1), points.get(0));
+
+        if (points.size() == 2) {
+            return ap.cross(ab).getLength() > tolerance * ab.getLength();
+        }
+
+        Vec3D norm = ab.cross(Vec3D.sub(points.get(2), points.get(0)));
+
+        return Math.abs(ap.dot(norm)) > tolerance * norm.getLength();
+    }
+
+    /**
+     * Add the face abc to the polytope with its normal facing away from the
+     * point 'interior'. Faces without area are skipped.
+     */
+    private void addFace(ArrayList<EPAFace> faces, Vec3D a, Vec3D b, Vec3D c,
+            Vec3D interior) {
+
+        Vec3D norm = Vec3D.sub(b, a).cross(Vec3D.sub(c, a));
+
+        if (norm.getSquaredLength() == 0) {
+            return;
+        }
+
+        norm = norm.getNormalized();
+
+        if (norm.dot(Vec3D.sub(a, interior)) < 0) {
+            norm.negate();
+        }
+
+        faces.add(new EPAFace(a, b, c, norm));
+    }
+
+    /**
+     * Get the face of the polytope closest to the origin.
+     */
+    private EPAFace getClosestFace(ArrayList<EPAFace> faces) {
+        EPAFace closest = faces.get(0);
+        for (EPAFace f : faces) {
+            if (f.dist < closest.dist) {
+                closest = f;
+            }
+        }
+        return closest;
+    }
+
+    /**
+     * Add the edge ab to the horizon, unless its reverse is already there. An
+     * edge shared by two removed faces is inside the hole, not on its boundary.
+     */
+    private void addHorizonEdge(ArrayList<Vec3D[]> horizon, Vec3D a, Vec3D b) {
+        for (int i = 0; i < horizon.size(); i++) {
+            Vec3D[] edge = horizon.get(i);
+
+            if ((edge[0] == b && edge[1] == a)
+                    || (edge[0] == a && edge[1] == b)) {
+                horizon.remove(i);
+                return;
+            }
+        }
+
+        horizon.add(new Vec3D[] { a, b });
+    }
+
+    /**
+     * Returns the support point of the minkowski difference of s1 and s2 in
+     * direction dir.
+     */
+    private Vec3D getSupport(Shape s1, Shape s2, Vec3D dir) {
+        return Vec3D.sub(s1.support(dir), s2.support(Vec3D.getNegated(dir)));
+    }
+}
+
+/**
+ * A triangular face of the EPA polytope.
+ */
+class EPAFace {
+
+    final Vec3D a, b, c;
+
+    /**
+     * The unit outward normal of the face.
+     */
+    final Vec3D normal;
+
+    /**
+     * The distance from the origin to the plane of the face.
+     */
+    final double dist;
+
+    EPAFace(Vec3D a, Vec3D b, Vec3D c, Vec3D normal) {
+        this.a = a;
+        this.b = b;
+        this.c = c;
+        this.normal = normal;
+        this.dist = normal.dot(a);
+    }
+}
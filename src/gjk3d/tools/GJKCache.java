@@ -0,0 +1,228 @@
+package gjk3d.tools;
+
+import gjk3d.entities.Shape;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded memoisation cache placed in front of a {@link GJKCalculator}.
+ * Results are keyed by the identity of both shapes along with their version
+ * stamps, so a cached result is discarded as soon as either shape is modified
+ * through its setters. Collision is symmetric, so (s1, s2) and (s2, s1)
+ * share a single entry. <br>
+ * The cache is a fixed array of slots. A pair always maps to the same slot, so
+ * reads never lock and a newer pair simply evicts whichever pair was held in
+ * its slot before. This keeps the memory used by the cache bounded by its
+ * capacity.
+ */
+public class GJKCache implements CollisionEngine {
+
+    private final GJKCalculator calculator;
+
+    private final AtomicReferenceArray<Entry> slots;
+
+    private final int mask;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Create a new cache in front of the calculator 'calculator', holding at
+     * most 'capacity' pair results.
+     *
+     * @param calculator the calculator used to resolve cache misses.
+     * @param capacity the maximum number of pairs to hold. Rounded up to the
+     *            next power of two.
+     */
+    public GJKCache(GJKCalculator calculator, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Cache capacity must be "
+                    + "positive: " + capacity);
+        }
+
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+
+        this.calculator = calculator;
+        this.slots = new AtomicReferenceArray<Entry>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Return whether the shapes s1 and s2 are colliding, reusing a previous
+     * result if neither shape has changed since it was computed.
+     *
+     * @param s1 the first shape.
+     * @param s2 the second shape.
+     * @return true if s1 and s2 intersect, false otherwise.
+     */
+    @Override
+    public boolean isColliding(Shape s1, Shape s2) {
+
+        // Read the stamps before computing so a concurrent modification can
+        // only ever make the stored entry stale, never wrong.
+        long v1 = s1.getVersion();
+        long v2 = s2.getVersion();
+
+        int slot = slotOf(s1, s2);
+        Entry entry = slots.get(slot);
+
+        if (entry != null && entry.matches(s1, v1, s2, v2)) {
+            hits.increment();
+            return entry.colliding;
+        }
+
+        misses.increment();
+
+        boolean colliding = calculator.isColliding(s1, s2);
+        slots.set(slot, new Entry(s1, v1, s2, v2, colliding));
+
+        return colliding;
+    }
+
+    /**
+     * Store the result for s1 and s2 at their current versions, as if it had
+     * just been computed.
+     *
+     * @param s1 the first shape.
+     * @param s2 the second shape.
+     * @param colliding whether s1 and s2 intersect.
+     */
+    void put(Shape s1, Shape s2, boolean colliding) {
+        slots.set(slotOf(s1, s2), new Entry(s1, s1.getVersion(), s2,
+                s2.getVersion(), colliding));
+    }
+
+    /**
+     * Return whether a current result for s1 and s2 is held.
+     *
+     * @param s1 the first shape.
+     * @param s2 the second shape.
+     * @return true if the next query of s1 and s2 would be a hit.
+     */
+    boolean holds(Shape s1, Shape s2) {
+        Entry entry = slots.get(slotOf(s1, s2));
+        return entry != null && entry.matches(s1, s1.getVersion(), s2,
+                s2.getVersion());
+    }
+
+    /**
+     * @return every entry currently held, including stale ones.
+     */
+    List<Entry> getEntries() {
+        List<Entry> entries = new ArrayList<Entry>();
+        for (int i = 0; i < slots.length(); i++) {
+            Entry entry = slots.get(i);
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Drop every cached result. The hit and miss counters are left untouched.
+     */
+    public void clear() {
+        for (int i = 0; i < slots.length(); i++) {
+            slots.set(i, null);
+        }
+    }
+
+    /**
+     * Reset the hit and miss counters to zero.
+     */
+    public void resetStats() {
+        hits.reset();
+        misses.reset();
+    }
+
+    /**
+     * @return the number of queries answered from the cache.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of queries which had to be computed.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the maximum number of pairs this cache can hold.
+     */
+    public int getCapacity() {
+        return slots.length();
+    }
+
+    /**
+     * Get the slot the pair (s1, s2) is stored in. Both orders of a pair map
+     * to the same slot.
+     *
+     * @param s1 the first shape.
+     * @param s2 the second shape.
+     * @return the index of the slot for the pair.
+     */
+    private int slotOf(Shape s1, Shape s2) {
+        int h1 = System.identityHashCode(s1);
+        int h2 = System.identityHashCode(s2);
+
+        int h = Math.min(h1, h2) * 31 + Math.max(h1, h2);
+
+        // Spread the high bits down since only the low bits select the slot.
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+
+        return h & mask;
+    }
+
+    /**
+     * An immutable cached result for an ordered pair of shapes at specific
+     * versions.
+     */
+    static class Entry {
+
+        final Shape s1, s2;
+
+        final long v1, v2;
+
+        final boolean colliding;
+
+        Entry(Shape s1, long v1, Shape s2, long v2, boolean colliding) {
+            this.s1 = s1;
+            this.v1 = v1;
+            this.s2 = s2;
+            this.v2 = v2;
+            this.colliding = colliding;
+        }
+
+        /**
+         * @return true if neither shape has changed since this entry was
+         *         stored.
+         */
+        boolean isCurrent() {
+            return s1.getVersion() == v1 && s2.getVersion() == v2;
+        }
+
+        /**
+         * @return true if this entry holds the result for s1 and s2, in either
+         *         order, at the given versions.
+         */
+        boolean matches(Shape s1, long v1, Shape s2, long v2) {
+            if (this.s1 == s1 && this.s2 == s2) {
+                return this.v1 == v1 && this.v2 == v2;
+            }
+            return this.s1 == s2 && this.s2 == s1 && this.v1 == v2
+                    && this.v2 == v1;
+        }
+    }
+}
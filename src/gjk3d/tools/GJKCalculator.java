@@ -1,11 +1,23 @@
 package gjk3d.tools;
 
+import gjk3d.entities.Polyhedron;
 import gjk3d.entities.Shape;
 import gjk3d.entities.Vec3D;
 
 import java.util.ArrayList;
 
-public class GJKCalculator {
+public class GJKCalculator implements CollisionEngine {
+
+    /**
+     * The most refinements of the simplex made before giving up.
+     */
+    private static final int MAX_ITERATIONS = 64;
+
+    /**
+     * How much further, relatively, a new support point must get along the
+     * search direction to count as progress.
+     */
+    private static final double PROGRESS_TOLERANCE = 1e-10;
 
     /**
      * Using GJK, return whether the shapes s1 and s2 are colliding.
@@ -14,35 +26,151 @@ public class GJKCalculator {
      * @param s2 the second shape.
      * @return true if s1 and s2 intersect, false otherwise.
      */
+    @Override
     public boolean isColliding(Shape s1, Shape s2) {
 
+        Shape outer1 = getOuterHull(s1);
+        Shape outer2 = getOuterHull(s2);
+
+        if (outer1 != s1 || outer2 != s2) {
+
+            // If the conservative hulls miss, the shapes themselves must miss.
+            if (!isColliding(outer1, outer2)) {
+                return false;
+            }
+
+            Shape inner1 = getInnerHull(s1);
+            Shape inner2 = getInnerHull(s2);
+
+            // If the inner hulls overlap, the shapes themselves must overlap.
+            if ((inner1 != s1 || inner2 != s2)
+                    && isColliding(inner1, inner2)) {
+                return true;
+            }
+        }
+
+        // The coarse levels disagree, so the query is close to contact.
+        return isCollidingExact(s1, s2);
+    }
+
+    /**
+     * Get the outer level of detail hull of the shape s.
+     *
+     * @param s the shape.
+     * @return the outer hull of s if it has one, otherwise s itself.
+     */
+    private Shape getOuterHull(Shape s) {
+        if (s instanceof Polyhedron) {
+            Polyhedron hull = ((Polyhedron) s).getOuterHull();
+            if (hull != null) {
+                return hull;
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Get the inner level of detail hull of the shape s.
+     *
+     * @param s the shape.
+     * @return the inner hull of s if it has one, otherwise s itself.
+     */
+    private Shape getInnerHull(Shape s) {
+        if (s instanceof Polyhedron) {
+            Polyhedron hull = ((Polyhedron) s).getInnerHull();
+            if (hull != null) {
+                return hull;
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Using GJK, return whether the shapes s1 and s2 are colliding without
+     * consulting any level of detail hulls.
+     *
+     * @param s1 the first shape.
+     * @param s2 the second shape.
+     * @return true if s1 and s2 intersect, false otherwise.
+     */
+    private boolean isCollidingExact(Shape s1, Shape s2) {
+        return getCollisionSimplex(s1, s2) != null;
+    }
+
+    /**
+     * Using GJK, find the simplex of the minkowski difference of s1 and s2
+     * which encloses the origin. Level of detail hulls are not consulted.
+     *
+     * @param s1 the first shape.
+     * @param s2 the second shape.
+     * @return the final simplex if s1 and s2 intersect, null otherwise. This
+     *         is a tetrahedron enclosing the origin, or a smaller simplex with
+     *         the origin on it when the shapes only touch. Also null if the
+     *         search fails to converge.
+     */
+    ArrayList<Vec3D> getCollisionSimplex(Shape s1, Shape s2) {
+
         GJKStruct gjkInfo = new GJKStruct();
 
-        gjkInfo.dir = Vec3D.XAXIS;
+        gjkInfo.dir = new Vec3D(1, 0, 0);
 
         Vec3D newPt;
 
         gjkInfo.simplex.add(getSupport(s1, s2, gjkInfo.dir));
-        gjkInfo.dir.negate();
 
-        while (true) {
+        // Search from the first point towards the origin. The line and
+        // triangle cases rely on the origin lying that way.
+        gjkInfo.dir = gjkInfo.simplex.get(0).getNegated();
+
+        for (int i = 0; i < MAX_ITERATIONS; i++) {
+
+            // The origin lies on the simplex itself, so the shapes touch.
+            if (gjkInfo.dir.getSquaredLength() == 0) {
+                return gjkInfo.simplex;
+            }
 
             newPt = getSupport(s1, s2, gjkInfo.dir);
 
+            double newDot = newPt.dot(gjkInfo.dir);
+
             // If the new point in the new direction cannot even make it past
             // the origin, then there is no way to encapsulate the origin.
-            if (newPt.dot(gjkInfo.dir) < 0) {
-                return false;
+            if (newDot < 0) {
+                return null;
+            }
+
+            // If the new point gets no further along the search direction
+            // than the simplex already does, the simplex can't grow any more.
+            // The simplex is the feature closest to the origin and dir points
+            // from it to the origin, so maxDot is minus its distance to the
+            // origin times |dir|. newDot >= 0 bounds that distance by
+            // (newDot - maxDot) / |dir|, which is within rounding of zero
+            // here. So the origin is on the boundary and the shapes touch.
+            double maxDot = -Double.MAX_VALUE;
+            for (Vec3D p : gjkInfo.simplex) {
+                maxDot = Math.max(maxDot, p.dot(gjkInfo.dir));
+            }
+
+            if (newDot - maxDot <= PROGRESS_TOLERANCE
+                    * Math.max(Math.abs(newDot), Math.abs(maxDot))) {
+                return gjkInfo.simplex;
             }
 
             gjkInfo.simplex.add(newPt);
 
             if (computeSimplex(gjkInfo)) {
-                return true;
+                return gjkInfo.simplex;
             }
 
         }
 
+        // Unlike the progress exit above, running out of iterations bounds
+        // nothing. It has only been seen when rounding makes the simplex cycle
+        // with the origin a few ulps from the boundary, but it can't be
+        // proven to mean contact, so report the shapes as separated rather
+        // than guess. Callers then never treat a non converged query as a
+        // hit, including the outer hull early out and EPA.
+        return null;
     }
 
     /**
@@ -110,7 +238,7 @@ public class GJKCalculator {
         }
         // Otherwise point A is closest.
         else {
-            gjkInfo.simplex.remove(1);
+            gjkInfo.simplex.remove(0); // Remove B, keeping A.
             gjkInfo.dir = AO;
         }
 
@@ -160,34 +288,28 @@ public class GJKCalculator {
         ABplaneNorm = AB.cross(ABCnorm);
         ACplaneNorm = ABCnorm.cross(AC);
 
-        if (ABplaneNorm.dot(AO) > 0) { // Somewhere past the AB plane
-            if (AB.dot(AO) > 0) { // Past the A vor region, inside AB's vor
-                                  // region
-                gjkInfo.simplex.remove(0); // So remove C
-                gjkInfo.dir = AB.cross(AO).cross(AB);
-                return false;
-            }
-            else { // Inside A's voro region
-                gjkInfo.simplex.remove(0);
-                gjkInfo.simplex.remove(1);
-                gjkInfo.dir = AO;
-                return false;
-            }
+        boolean pastAB = ABplaneNorm.dot(AO) > 0;
+        boolean pastAC = ACplaneNorm.dot(AO) > 0;
+
+        // Past either edge plane, the origin may still lie in the other
+        // edge's voronoi region, so check both edges before settling on A.
+        if (pastAB && AB.dot(AO) > 0) { // Inside AB's vor region
+            gjkInfo.simplex.remove(0); // So remove C
+            gjkInfo.dir = AB.cross(AO).cross(AB);
+            return false;
         }
 
-        else if (ACplaneNorm.dot(AO) > 0) { // Somewhere past the AC plane
-            if (AC.dot(AO) > 0) { // Past the A voronoi region, inside AC's vor
-                                  // region
-                gjkInfo.simplex.remove(1); // So remove B
-                gjkInfo.dir = AC.cross(AO).cross(AC);
-                return false;
-            }
-            else { // Inside A's voronoi region
-                gjkInfo.simplex.remove(0); // Remove C.
-                gjkInfo.simplex.remove(1); // Remove B.
-                gjkInfo.dir = AO;
-                return false;
-            }
+        else if (pastAC && AC.dot(AO) > 0) { // Inside AC's vor region
+            gjkInfo.simplex.remove(1); // So remove B
+            gjkInfo.dir = AC.cross(AO).cross(AC);
+            return false;
+        }
+
+        else if (pastAB || pastAC) { // Inside A's voronoi region
+            gjkInfo.simplex.remove(0); // Remove C.
+            gjkInfo.simplex.remove(0); // Remove B, which is now first.
+            gjkInfo.dir = AO;
+            return false;
         }
         else { // On top of or below the triangle.
             double ABCnormDotAO = ABCnorm.dot(AO);
@@ -241,107 +363,88 @@ public class GJKCalculator {
         
         //@formatter:on
 
-        // The normal of the current triangle surface being tested.
-        Vec3D surfaceNorm;
-        Vec3D AB, AC, AO, AD;
+        Vec3D A, B, C, D;
+        Vec3D AB, AC, AD, AO;
 
-        AO = gjkInfo.simplex.get(3).getNegated();
+        A = gjkInfo.simplex.get(3);
+        B = gjkInfo.simplex.get(2);
+        C = gjkInfo.simplex.get(1);
+        D = gjkInfo.simplex.get(0);
 
-        AB = Vec3D.sub(gjkInfo.simplex.get(2), gjkInfo.simplex.get(3));
-        AC = Vec3D.sub(gjkInfo.simplex.get(1), gjkInfo.simplex.get(3));
+        AO = A.getNegated();
+        AB = Vec3D.sub(B, A);
+        AC = Vec3D.sub(C, A);
+        AD = Vec3D.sub(D, A);
 
-        // First test the ABC surface.
-        surfaceNorm = AB.cross(AC);
+        // The surfaces ABC, ADB and ACD, as the 2nd and 3rd vertex of each.
+        Vec3D[][] surfaces = { { B, C }, { D, B }, { C, D } };
+        Vec3D[] surfaceNorms = { AB.cross(AC), AD.cross(AB), AC.cross(AD) };
 
-        // If the origin is outside the tetrahedron, update the simplex, search
-        // direction and return.
-        if (surfaceNorm.dot(AO) > 0) {
-            refineSimplex(gjkInfo, surfaceNorm, gjkInfo.simplex.get(2),
-                    gjkInfo.simplex.get(1), AB, AC, AO);
-            return false;
-        }
+        // The origin can be in front of more than one surface, and the first
+        // of them need not hold the feature closest to it. Picking the wrong
+        // one lets the simplex cycle, so refine against each surface the
+        // origin is in front of and keep whichever result is closest.
+        GJKStruct closest = null;
+        double closestDist = Double.MAX_VALUE;
 
-        AD = Vec3D.sub(gjkInfo.simplex.get(0), gjkInfo.simplex.get(3));
-        // Next, test the ADB surface.
-        surfaceNorm = AD.cross(AB);
+        for (int i = 0; i < surfaces.length; i++) {
 
-        if (surfaceNorm.dot(AO) > 0) {
-            refineSimplex(gjkInfo, surfaceNorm, gjkInfo.simplex.get(0),
-                    gjkInfo.simplex.get(2), AD, AB, AO);
-            return false;
-        }
+            if (surfaceNorms[i].dot(AO) <= 0) {
+                continue;
+            }
+
+            GJKStruct refined = new GJKStruct();
+            if (refineSimplex(refined, A, surfaces[i][0], surfaces[i][1])) {
+                // The origin lies on this surface.
+                gjkInfo.simplex = refined.simplex;
+                return true;
+            }
 
-        // Finally, test the ACD surface.
-        surfaceNorm = AC.cross(AD);
+            // The search direction is perpendicular to the closest feature,
+            // which A is always a part of.
+            double dirLength = refined.dir.getLength();
+            double dist = dirLength == 0 ? 0 : -A.dot(refined.dir) / dirLength;
 
-        if (surfaceNorm.dot(AO) > 0) {
-            refineSimplex(gjkInfo, surfaceNorm, gjkInfo.simplex.get(1),
-                    gjkInfo.simplex.get(0), AC, AD, AO);
-            return false;
+            if (dist < closestDist) {
+                closest = refined;
+                closestDist = dist;
+            }
         }
 
         // No need to test BCD surface because with the addition of A, we
         // already know that the origin is not in front of it.
         // Therefore, the origin is contained within the tetrahedron simplex.
-        return true;
+        if (closest == null) {
+            return true;
+        }
+
+        gjkInfo.simplex = closest.simplex;
+        gjkInfo.dir = closest.dir;
+        return false;
 
     }
 
     /**
-     * Remove all unnecessary vertices from the simplex (those which are not
-     * closest to the origin) and refine the search direction. The surface is
-     * defined by the CCW triangle APQ. <br>
-     * 'A' does not need to be passed in because it is known to be the last item
-     * added to the simplex. <br>
-     * <i> The large number of parameters is mainly to skip unnecessary
-     * computation of values which have already been found earlier. </i>
+     * Reduce the simplex to the triangle APQ, which the origin is known to be
+     * in front of, and handle it like any other triangle. This also checks
+     * the vertex region of A, and the edge regions of AP and AQ.
      * 
-     * @param simplex the current tetrahedron simplex.
-     * @param dir the current search direction.
-     * @param surfaceNorm the normal of the surface being checked.
+     * @param refined where the refined simplex and search direction are
+     *            stored.
+     * @param A the newest vertex of the tetrahedron.
      * @param P the 2nd vertex of the triangle.
      * @param Q the 3nd vertex of the triangle.
-     * @param AP the AP vector.
-     * @param AQ the AQ vector.
-     * @param AO the reference vector pointing at the origin.
+     * @return true if the origin lies on the triangle, false otherwise.
      */
-    private void refineSimplex(GJKStruct gjkInfo, Vec3D surfaceNorm, Vec3D P,
-            Vec3D Q, Vec3D AP, Vec3D AQ, Vec3D AO) {
-
-        Vec3D APnorm = AP.cross(surfaceNorm);
-        Vec3D A = gjkInfo.simplex.get(3);
-
-        if (APnorm.dot(AO) > 0) {
-            gjkInfo.dir = AP.cross(AO).cross(AP);
-
-            // The new simplex should be a line again.
-            gjkInfo.simplex.clear();
-            gjkInfo.simplex.add(P);
-            gjkInfo.simplex.add(A); // Set the "last added" pt to be A.
-            return;
-        }
-
-        Vec3D AQnorm = surfaceNorm.cross(AQ);
-
-        if (AQnorm.dot(AO) > 0) {
-            gjkInfo.dir = AQ.cross(AO).cross(AQ);
-
-            // The new simplex should be a line again.
-            gjkInfo.simplex.clear();
-            gjkInfo.simplex.add(Q);
-            gjkInfo.simplex.add(A); // Set the "last added" pt to be A.
-            return;
-        }
-
-        // Else the triangle surface is closest to the origin.
-        gjkInfo.dir = surfaceNorm;
+    private boolean refineSimplex(GJKStruct refined, Vec3D A, Vec3D P,
+            Vec3D Q) {
 
-        // The new simplex should be a line again.
-        gjkInfo.simplex.clear();
-        gjkInfo.simplex.add(Q);
-        gjkInfo.simplex.add(P);
-        gjkInfo.simplex.add(A); // Set the "last added" pt to be A.
+        refined.simplex.clear();
+        refined.simplex.add(Q);
+        refined.simplex.add(P);
+        refined.simplex.add(A); // Set the "last added" pt to be A.
 
+        return computeTriangleSimplex(refined);
     }
 }
 
@@ -0,0 +1,471 @@
+package gjk3d.tools;
+
+import gjk3d.entities.Shape;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Streams collision queries to a compact binary log which can later be run
+ * again with {@link QueryReplay}. <br>
+ * Each shape is written once along with its level of detail hulls, the first
+ * time it is seen, and again only when its version stamp changes. Queries
+ * then refer to shapes by id. <br>
+ * Each thread packs its queries into a small buffer of its own, and
+ * remembers the ids of the shapes it has recently queried. So a thread only
+ * takes the recorder's lock to define a shape it has not seen at its current
+ * version, or to move a full buffer into the shared one. Full shared buffers
+ * are handed to a background thread which writes them to the file. <br>
+ * A query made while another thread is changing one of its shapes may be
+ * replayed against either version of the shape. Queries involving shape
+ * types which cannot be stored are not recorded.
+ *
+ * <pre>
+ * log    := MAGIC FORMAT_VERSION record*
+ * record := SHAPE_RECORD length:int id:int shape
+ *         | QUERY_RECORD id1:int id2:int colliding:byte
+ * shape  := a record written by ShapeCodec.writeRecord()
+ * </pre>
+ */
+public class QueryRecorder implements Closeable {
+
+    static final int MAGIC = 0x474A4B51; // "GJKQ"
+    static final int FORMAT_VERSION = 2;
+
+    static final byte SHAPE_RECORD = 1;
+    static final byte QUERY_RECORD = 2;
+
+    static final int QUERY_RECORD_SIZE = 1 + 4 + 4 + 1;
+
+    private static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+    private static final int LOCAL_BUFFER_SIZE = 1 << 12;
+
+    /**
+     * How many shapes each thread remembers the ids of. Must be a power of
+     * two.
+     */
+    private static final int LOCAL_CACHE_SIZE = 64;
+
+    private final FileChannel channel;
+
+    private final ExecutorService writer;
+
+    /**
+     * The buffer records are currently being packed into.
+     */
+    private ByteBuffer buffer;
+
+    /**
+     * The buffer which is either being written, or free to be swapped in.
+     */
+    private ByteBuffer spare;
+
+    private Future<?> pendingWrite;
+
+    /**
+     * The id and last recorded version of every shape seen so far.
+     */
+    private final WeakHashMap<Shape, ShapeRef> shapes =
+            new WeakHashMap<Shape, ShapeRef>();
+
+    private int nextId;
+
+    private final int localBufferSize;
+
+    /**
+     * The buffer of every thread which has recorded a query.
+     */
+    private final List<LocalBuffer> locals = new ArrayList<LocalBuffer>();
+
+    private final ThreadLocal<LocalBuffer> local =
+            new ThreadLocal<LocalBuffer>() {
+                @Override
+                protected LocalBuffer initialValue() {
+                    LocalBuffer buf = new LocalBuffer(localBufferSize);
+                    synchronized (QueryRecorder.this) {
+                        locals.add(buf);
+                    }
+                    return buf;
+                }
+            };
+
+    private final LongAdder recorded = new LongAdder();
+
+    private volatile IOException failure;
+
+    private volatile boolean closed;
+
+    /**
+     * Create a new recorder writing to the file 'path'. Any existing file is
+     * replaced.
+     *
+     * @param path the file to record to.
+     * @throws IOException if the file cannot be opened.
+     */
+    public QueryRecorder(Path path) throws IOException {
+        this(path, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Create a new recorder writing to the file 'path' using two buffers of
+     * 'bufferSize' bytes. Any existing file is replaced.
+     *
+     * @param path the file to record to.
+     * @param bufferSize the size of each buffer in bytes.
+     * @throws IOException if the file cannot be opened.
+     */
+    public QueryRecorder(Path path, int bufferSize) throws IOException {
+        if (bufferSize < QUERY_RECORD_SIZE) {
+            throw new IllegalArgumentException("Buffer too small: "
+                    + bufferSize);
+        }
+
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+        this.spare = ByteBuffer.allocateDirect(bufferSize);
+
+        // A thread's buffer is always moved into the shared one in one go.
+        this.localBufferSize = Math.min(LOCAL_BUFFER_SIZE, bufferSize);
+
+        this.writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "gjk-query-recorder");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        ByteBuffer header = ByteBuffer.allocate(8);
+        header.putInt(MAGIC).putInt(FORMAT_VERSION).flip();
+        writeFully(header);
+
+        if (failure != null) {
+            writer.shutdown();
+            channel.close();
+            throw failure;
+        }
+    }
+
+    /**
+     * Record a query of the shapes s1 and s2 and its result. <br>
+     * This never throws. If writing fails, recording stops and the failure is
+     * reported by close().
+     *
+     * @param s1 the first shape.
+     * @param s2 the second shape.
+     * @param colliding the result of the query.
+     */
+    public void record(Shape s1, Shape s2, boolean colliding) {
+        if (closed || failure != null) {
+            return;
+        }
+
+        LocalBuffer buf = local.get();
+
+        long v1 = s1.getVersion();
+        long v2 = s2.getVersion();
+
+        int id1 = buf.lookup(s1, v1);
+        int id2 = buf.lookup(s2, v2);
+
+        if (id1 < 0 || id2 < 0) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                id1 = defineShape(s1, v1);
+                id2 = defineShape(s2, v2);
+            }
+
+            if (id1 < 0 || id2 < 0) {
+                return;
+            }
+
+            buf.remember(s1, v1, id1);
+            buf.remember(s2, v2, id2);
+        }
+
+        boolean full;
+
+        synchronized (buf) {
+            buf.records.put(QUERY_RECORD).putInt(id1).putInt(id2)
+                    .put((byte) (colliding ? 1 : 0));
+            full = buf.records.remaining() < QUERY_RECORD_SIZE;
+        }
+
+        recorded.increment();
+
+        if (full) {
+            synchronized (this) {
+                if (!closed) {
+                    drain(buf);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of queries recorded so far.
+     */
+    public long getRecorded() {
+        return recorded.sum();
+    }
+
+    /**
+     * Write out every buffered record and close the log. Queries recorded by
+     * other threads while this runs may be lost.
+     *
+     * @throws IOException if any record could not be written.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            drainAll();
+            swapBuffers();
+            awaitPendingWrite();
+        }
+        finally {
+            writer.shutdown();
+            channel.close();
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Get the id of the shape s, writing its definition to the log if it is
+     * new or has changed since it was last written. Must hold the lock.
+     *
+     * @param s the shape.
+     * @param version the version of s the query was made at.
+     * @return the id of s, or -1 if s cannot be recorded.
+     */
+    private int defineShape(Shape s, long version) {
+        ShapeRef ref = shapes.get(s);
+
+        // Another thread may have defined it already.
+        if (ref != null && ref.version == version) {
+            return ref.id;
+        }
+
+        int size = ShapeCodec.sizeOfRecord(s);
+        if (size < 0) {
+            return -1;
+        }
+
+        if (ref == null) {
+            ref = new ShapeRef(nextId++);
+            shapes.put(s, ref);
+        }
+        else {
+            // Queries still held by any thread refer to the old definition,
+            // so they must reach the log before it is replaced.
+            drainAll();
+        }
+        ref.version = version;
+
+        int length = 4 + size;
+
+        if (1 + 4 + length > buffer.capacity()) {
+            // Too large to ever fit, so write it out directly.
+            swapBuffers();
+            awaitPendingWrite();
+
+            ByteBuffer large = ByteBuffer.allocate(1 + 4 + length);
+            large.put(SHAPE_RECORD).putInt(length).putInt(ref.id);
+            ShapeCodec.writeRecord(large, s);
+            large.flip();
+            writeFully(large);
+        }
+        else {
+            reserve(1 + 4 + length);
+            buffer.put(SHAPE_RECORD).putInt(length).putInt(ref.id);
+            ShapeCodec.writeRecord(buffer, s);
+        }
+
+        return ref.id;
+    }
+
+    /**
+     * Move the queries held by every thread into the current buffer. Must
+     * hold the lock.
+     */
+    private void drainAll() {
+        for (LocalBuffer buf : locals) {
+            drain(buf);
+        }
+    }
+
+    /**
+     * Move the queries held by one thread into the current buffer. Must hold
+     * the lock.
+     */
+    private void drain(LocalBuffer buf) {
+        synchronized (buf) {
+            buf.records.flip();
+            reserve(buf.records.remaining());
+            buffer.put(buf.records);
+            buf.records.clear();
+        }
+    }
+
+    /**
+     * Make sure the current buffer has at least 'bytes' bytes remaining.
+     */
+    private void reserve(int bytes) {
+        if (buffer.remaining() < bytes) {
+            swapBuffers();
+        }
+    }
+
+    /**
+     * Hand the current buffer to the writer thread and continue packing into
+     * the spare one once it is free.
+     */
+    private void swapBuffers() {
+        if (buffer.position() == 0) {
+            return;
+        }
+
+        awaitPendingWrite();
+
+        final ByteBuffer full = buffer;
+        full.flip();
+
+        buffer = spare;
+        buffer.clear();
+        spare = full;
+
+        pendingWrite = writer.submit(new Runnable() {
+            @Override
+            public void run() {
+                writeFully(full);
+            }
+        });
+    }
+
+    private void awaitPendingWrite() {
+        if (pendingWrite == null) {
+            return;
+        }
+
+        boolean interrupted = false;
+
+        while (true) {
+            try {
+                pendingWrite.get();
+                break;
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+            catch (ExecutionException e) {
+                failure = new IOException("Recording failed", e.getCause());
+                break;
+            }
+        }
+
+        pendingWrite = null;
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeFully(ByteBuffer buf) {
+        try {
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+        }
+        catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    /**
+     * The queries recorded by one thread which have not yet been moved into
+     * the shared buffer, guarded by this object's lock, and the ids of the
+     * shapes that thread has recently queried, which only it uses.
+     */
+    private static class LocalBuffer {
+
+        final ByteBuffer records;
+
+        private final Shape[] shapes = new Shape[LOCAL_CACHE_SIZE];
+
+        private final long[] versions = new long[LOCAL_CACHE_SIZE];
+
+        private final int[] ids = new int[LOCAL_CACHE_SIZE];
+
+        LocalBuffer(int size) {
+            this.records = ByteBuffer.allocate(size);
+        }
+
+        /**
+         * @return the id s was last defined under, or -1 if this thread does
+         *         not know that s has been defined at 'version'.
+         */
+        int lookup(Shape s, long version) {
+            int slot = slotOf(s);
+            if (shapes[slot] == s && versions[slot] == version) {
+                return ids[slot];
+            }
+            return -1;
+        }
+
+        /**
+         * Remember that s has been defined at 'version' under 'id'.
+         */
+        void remember(Shape s, long version, int id) {
+            int slot = slotOf(s);
+            shapes[slot] = s;
+            versions[slot] = version;
+            ids[slot] = id;
+        }
+
+        private static int slotOf(Shape s) {
+            return System.identityHashCode(s) & (LOCAL_CACHE_SIZE - 1);
+        }
+    }
+}
+
+/**
+ * The id a shape is recorded under, and the version it was last recorded at.
+ */
+class ShapeRef {
+
+    final int id;
+
+    long version;
+
+    ShapeRef(int id) {
+        this.id = id;
+        this.version = -1;
+    }
+}
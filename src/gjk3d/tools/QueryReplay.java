@@ -0,0 +1,249 @@
+package gjk3d.tools;
+
+import gjk3d.entities.Polyhedron;
+import gjk3d.entities.Shape;
+import gjk3d.entities.Sphere;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Runs the queries in a log written by {@link QueryRecorder} against a
+ * collision engine, timing each one and checking its result against the
+ * recorded one. <br>
+ * Usage: <code>QueryReplay &lt;log&gt; [cacheCapacity]</code>
+ */
+public class QueryReplay {
+
+    private static final int READ_BUFFER_SIZE = 1 << 20;
+
+    private final FileChannel channel;
+
+    private ByteBuffer buffer;
+
+    /**
+     * Every shape defined so far, by id.
+     */
+    private final HashMap<Integer, Shape> shapes =
+            new HashMap<Integer, Shape>();
+
+    private QueryReplay(FileChannel channel) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        this.buffer.flip();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: QueryReplay <log> [cacheCapacity]");
+            System.exit(1);
+        }
+
+        CollisionEngine engine = new GJKCalculator();
+        if (args.length > 1) {
+            engine = new GJKCache((GJKCalculator) engine,
+                    Integer.parseInt(args[1]));
+        }
+
+        System.out.println(replay(Paths.get(args[0]), engine));
+    }
+
+    /**
+     * Replay every query in the log 'log' against the engine 'engine'. <br>
+     * Shapes which change during the recording are updated through their
+     * setters, so engines which depend on version stamps see the same changes
+     * they would have seen live.
+     *
+     * @param log the log to replay.
+     * @param engine the engine to run the queries on.
+     * @return the timings and mismatches of the replay.
+     * @throws IOException if the log cannot be read or is malformed.
+     */
+    public static ReplayReport replay(Path log, CollisionEngine engine)
+            throws IOException {
+
+        FileChannel channel = FileChannel.open(log, StandardOpenOption.READ);
+
+        try {
+            return new QueryReplay(channel).run(engine);
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    private ReplayReport run(CollisionEngine engine) throws IOException {
+
+        if (!fill(8) || buffer.getInt() != QueryRecorder.MAGIC) {
+            throw new IOException("Not a query log");
+        }
+
+        int version = buffer.getInt();
+        if (version != QueryRecorder.FORMAT_VERSION) {
+            throw new IOException("Unsupported query log version: " + version);
+        }
+
+        long[] latencies = new long[1024];
+        int queries = 0;
+        long mismatches = 0;
+        long totalNanos = 0;
+
+        while (fill(1)) {
+            byte tag = buffer.get();
+
+            if (tag == QueryRecorder.SHAPE_RECORD) {
+                require(4);
+                int length = buffer.getInt();
+
+                if (length < 4) {
+                    throw new IOException("Invalid shape record length: "
+                            + length);
+                }
+
+                require(length);
+                int id = buffer.getInt();
+                defineShape(id, readShape(length - 4));
+            }
+            else if (tag == QueryRecorder.QUERY_RECORD) {
+                require(QueryRecorder.QUERY_RECORD_SIZE - 1);
+                Shape s1 = getShape(buffer.getInt());
+                Shape s2 = getShape(buffer.getInt());
+                boolean expected = buffer.get() != 0;
+
+                long start = System.nanoTime();
+                boolean colliding = engine.isColliding(s1, s2);
+                long elapsed = System.nanoTime() - start;
+
+                if (colliding != expected) {
+                    mismatches++;
+                }
+
+                if (queries == latencies.length) {
+                    latencies = Arrays.copyOf(latencies, queries * 2);
+                }
+                latencies[queries++] = elapsed;
+                totalNanos += elapsed;
+            }
+            else {
+                throw new IOException("Unknown record type: " + tag);
+            }
+        }
+
+        latencies = Arrays.copyOf(latencies, queries);
+        Arrays.sort(latencies);
+
+        return new ReplayReport(latencies, totalNanos, mismatches);
+    }
+
+    /**
+     * Store the shape 'shape' under the id 'id'. If a shape of the same type
+     * already exists under that id, it is updated in place instead, along
+     * with its level of detail hulls.
+     */
+    private void defineShape(int id, Shape shape) {
+        Shape existing = shapes.get(id);
+
+        if (existing instanceof Sphere && shape instanceof Sphere) {
+            ((Sphere) existing).setPos(((Sphere) shape).getPos());
+            ((Sphere) existing).setRadius(((Sphere) shape).getRadius());
+        }
+        else if (existing instanceof Polyhedron
+                && shape instanceof Polyhedron) {
+            Polyhedron p = (Polyhedron) existing;
+            Polyhedron update = (Polyhedron) shape;
+
+            // Setting the vertices drops the hulls, so restore the recorded
+            // ones afterwards.
+            p.setVertices(update.getVertices());
+            p.setOuterHull(update.getOuterHull());
+            p.setInnerHull(update.getInnerHull());
+        }
+        else {
+            shapes.put(id, shape);
+        }
+    }
+
+    /**
+     * Decode the shape record of 'length' bytes at the start of the buffer,
+     * which must hold exactly that record.
+     */
+    private Shape readShape(int length) throws IOException {
+        ByteBuffer record = buffer.duplicate();
+        record.limit(record.position() + length);
+
+        Shape shape;
+        try {
+            shape = ShapeCodec.readRecord(record);
+        }
+        catch (BufferUnderflowException e) {
+            throw new IOException("Truncated shape record", e);
+        }
+        catch (IllegalArgumentException e) {
+            throw new IOException("Corrupt shape record: " + e.getMessage(),
+                    e);
+        }
+
+        if (record.hasRemaining()) {
+            throw new IOException("Shape record longer than its shape");
+        }
+
+        buffer.position(record.position());
+
+        return shape;
+    }
+
+    private Shape getShape(int id) throws IOException {
+        Shape s = shapes.get(id);
+        if (s == null) {
+            throw new IOException("Query refers to undefined shape: " + id);
+        }
+        return s;
+    }
+
+    /**
+     * Make sure at least 'bytes' bytes are buffered, failing if the log ends
+     * first.
+     */
+    private void require(int bytes) throws IOException {
+        if (!fill(bytes)) {
+            throw new IOException("Truncated query log");
+        }
+    }
+
+    /**
+     * Try to buffer at least 'bytes' bytes, growing the buffer if needed.
+     *
+     * @return true if the bytes are available, false if the log ended first.
+     */
+    private boolean fill(int bytes) throws IOException {
+        if (buffer.remaining() >= bytes) {
+            return true;
+        }
+
+        if (bytes > buffer.capacity()) {
+            ByteBuffer larger = ByteBuffer.allocateDirect(bytes);
+            larger.put(buffer);
+            buffer = larger;
+        }
+        else {
+            buffer.compact();
+        }
+
+        while (buffer.position() < bytes) {
+            if (channel.read(buffer) < 0) {
+                break;
+            }
+        }
+
+        buffer.flip();
+
+        return buffer.remaining() >= bytes;
+    }
+}
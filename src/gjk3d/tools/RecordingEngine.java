@@ -0,0 +1,57 @@
+package gjk3d.tools;
+
+import gjk3d.entities.Shape;
+
+/**
+ * Streams every query answered by another collision engine to a
+ * {@link QueryRecorder}. Wrap the outermost engine, such as a
+ * {@link GJKCache}, to record exactly what callers asked and were told,
+ * including queries which never reach the calculator.
+ */
+public class RecordingEngine implements CollisionEngine {
+
+    private final CollisionEngine engine;
+
+    private final QueryRecorder recorder;
+
+    /**
+     * Create a new engine which answers queries with 'engine' and records
+     * them to 'recorder'. The recorder is not closed by this engine.
+     *
+     * @param engine the engine used to answer queries.
+     * @param recorder the recorder queries are streamed to.
+     */
+    public RecordingEngine(CollisionEngine engine, QueryRecorder recorder) {
+        this.engine = engine;
+        this.recorder = recorder;
+    }
+
+    /**
+     * Return whether the shapes s1 and s2 are colliding according to the
+     * wrapped engine, and record the query.
+     *
+     * @param s1 the first shape.
+     * @param s2 the second shape.
+     * @return true if s1 and s2 intersect, false otherwise.
+     */
+    @Override
+    public boolean isColliding(Shape s1, Shape s2) {
+        boolean colliding = engine.isColliding(s1, s2);
+        recorder.record(s1, s2, colliding);
+        return colliding;
+    }
+
+    /**
+     * @return the engine used to answer queries.
+     */
+    public CollisionEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * @return the recorder queries are streamed to.
+     */
+    public QueryRecorder getRecorder() {
+        return recorder;
+    }
+}
@@ -0,0 +1,77 @@
+package gjk3d.tools;
+
+/**
+ * The results of replaying a query log with {@link QueryReplay}.
+ */
+public class ReplayReport {
+
+    /**
+     * The latency of every query in nanoseconds, sorted ascending.
+     */
+    private final long[] latencies;
+
+    private final long totalNanos;
+
+    private final long mismatches;
+
+    ReplayReport(long[] latencies, long totalNanos, long mismatches) {
+        this.latencies = latencies;
+        this.totalNanos = totalNanos;
+        this.mismatches = mismatches;
+    }
+
+    /**
+     * @return the number of queries replayed.
+     */
+    public int getQueries() {
+        return latencies.length;
+    }
+
+    /**
+     * @return the number of queries whose result differed from the recording.
+     */
+    public long getMismatches() {
+        return mismatches;
+    }
+
+    /**
+     * @return the total time spent inside the engine, in nanoseconds.
+     */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * @return the number of queries answered per second of engine time.
+     */
+    public double getThroughput() {
+        return totalNanos == 0 ? 0 : latencies.length * 1e9 / totalNanos;
+    }
+
+    /**
+     * Get a latency percentile using the nearest rank method.
+     *
+     * @param percentile the percentile to get, in [0, 100].
+     * @return the latency at that percentile in nanoseconds, or 0 if no
+     *         queries were replayed.
+     */
+    public long getLatencyPercentile(double percentile) {
+        if (latencies.length == 0) {
+            return 0;
+        }
+
+        int rank = (int) Math.ceil(percentile / 100 * latencies.length);
+        rank = Math.max(1, Math.min(latencies.length, rank));
+
+        return latencies[rank - 1];
+    }
+
+    @Override
+    public String toString() {
+        return String.format("queries=%d mismatches=%d throughput=%.0f/s "
+                + "p50=%dns p90=%dns p99=%dns max=%dns", getQueries(),
+                mismatches, getThroughput(), getLatencyPercentile(50),
+                getLatencyPercentile(90), getLatencyPercentile(99),
+                getLatencyPercentile(100));
+    }
+}
@@ -0,0 +1,402 @@
+package gjk3d.tools;
+
+import gjk3d.entities.Shape;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A versioned binary snapshot of a collision scene. Holds every shape along
+ * with its level of detail hulls, and optionally the results held by a
+ * {@link GJKCache} so a restored scene starts with a warm cache. <br>
+ * Snapshots are written in large chunks and read back by memory mapping the
+ * file. Shapes are only decoded the first time they are requested. open()
+ * checks the header, offsets and pair table, while each shape record is
+ * checked as it is decoded, so a corrupt record is reported by get().
+ *
+ * <pre>
+ * snapshot := MAGIC FORMAT_VERSION shapeCount:int pairCount:int
+ *             offset:long[shapeCount] shape[shapeCount] pair[pairCount]
+ * shape    := shape hulls         (hulls only for polyhedra)
+ * hulls    := flags:byte [shape hulls] [shape hulls]
+ * pair     := index1:int index2:int colliding:byte
+ * </pre>
+ */
+public class SceneSnapshot {
+
+    static final int MAGIC = 0x474A4B53; // "GJKS"
+    static final int FORMAT_VERSION = 1;
+
+    private static final int HEADER_SIZE = 4 * 4;
+    private static final int PAIR_SIZE = 4 + 4 + 1;
+
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+    private final ByteBuffer mapped;
+
+    private final int shapeCount;
+
+    private final int pairCount;
+
+    /**
+     * The offset of each shape's record, and then of the pair table.
+     */
+    private final long[] offsets;
+
+    private final AtomicReferenceArray<Shape> shapes;
+
+    private SceneSnapshot(ByteBuffer mapped) throws IOException {
+        this.mapped = mapped;
+
+        if (mapped.remaining() < HEADER_SIZE || mapped.getInt(0) != MAGIC) {
+            throw new IOException("Not a scene snapshot");
+        }
+
+        int version = mapped.getInt(4);
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported scene snapshot version: "
+                    + version);
+        }
+
+        this.shapeCount = mapped.getInt(8);
+        this.pairCount = mapped.getInt(12);
+
+        long shapesStart = HEADER_SIZE + 8L * shapeCount;
+        long pairsStart = mapped.limit() - (long) pairCount * PAIR_SIZE;
+
+        if (shapeCount < 0 || pairCount < 0 || shapesStart > pairsStart) {
+            throw new IOException("Corrupt scene snapshot: " + shapeCount
+                    + " shapes and " + pairCount + " pairs do not fit in "
+                    + mapped.limit() + " bytes");
+        }
+
+        this.offsets = new long[shapeCount + 1];
+        offsets[shapeCount] = pairsStart;
+
+        // Every record must start after the previous one and end before the
+        // pair table.
+        long previous = shapesStart - 1;
+        for (int i = 0; i < shapeCount; i++) {
+            offsets[i] = mapped.getLong(HEADER_SIZE + i * 8);
+
+            if (offsets[i] <= previous || offsets[i] >= pairsStart) {
+                throw new IOException("Corrupt scene snapshot: shape " + i
+                        + " has invalid offset " + offsets[i]);
+            }
+            previous = offsets[i];
+        }
+
+        for (int i = 0; i < pairCount; i++) {
+            int pair = (int) pairsStart + i * PAIR_SIZE;
+            int index1 = mapped.getInt(pair);
+            int index2 = mapped.getInt(pair + 4);
+
+            if (index1 < 0 || index1 >= shapeCount || index2 < 0
+                    || index2 >= shapeCount) {
+                throw new IOException("Corrupt scene snapshot: pair " + i
+                        + " refers to missing shape");
+            }
+        }
+
+        this.shapes = new AtomicReferenceArray<Shape>(shapeCount);
+    }
+
+    /**
+     * Write a snapshot of the shapes 'shapes' to the file 'path', replacing
+     * it if it exists. The snapshot is written to a temporary file next to
+     * 'path' first and then moved over it, so a failed write never leaves a
+     * partial snapshot behind.
+     *
+     * @param path the file to write to.
+     * @param shapes the shapes in the scene.
+     * @param cache a cache whose results should be kept, or null. Only
+     *            results which are still current and whose shapes are both in
+     *            'shapes' are written.
+     * @throws IOException if the snapshot cannot be written.
+     */
+    public static void write(Path path, List<? extends Shape> shapes,
+            GJKCache cache) throws IOException {
+
+        IdentityHashMap<Shape, Integer> indices =
+                new IdentityHashMap<Shape, Integer>();
+
+        long[] offsets = new long[shapes.size()];
+        long offset = HEADER_SIZE + 8L * shapes.size();
+
+        for (int i = 0; i < shapes.size(); i++) {
+            Shape s = shapes.get(i);
+            indices.put(s, i);
+            offsets[i] = offset;
+            offset += sizeOfRecord(s);
+        }
+
+        List<GJKCache.Entry> pairs = new ArrayList<GJKCache.Entry>();
+        if (cache != null) {
+            for (GJKCache.Entry entry : cache.getEntries()) {
+                if (entry.isCurrent() && indices.containsKey(entry.s1)
+                        && indices.containsKey(entry.s2)) {
+                    pairs.add(entry);
+                }
+            }
+        }
+
+        if (offset + (long) pairs.size() * PAIR_SIZE > Integer.MAX_VALUE) {
+            throw new IOException("Scene too large to snapshot");
+        }
+
+        Path dir = path.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(dir, path.getFileName().toString(),
+                ".tmp");
+
+        boolean written = false;
+
+        try {
+            writeTo(temp, shapes, offsets, indices, pairs);
+
+            try {
+                Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            written = true;
+        }
+        finally {
+            if (!written) {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    /**
+     * Write the snapshot laid out by write() into the file 'path'.
+     */
+    private static void writeTo(Path path, List<? extends Shape> shapes,
+            long[] offsets, IdentityHashMap<Shape, Integer> indices,
+            List<GJKCache.Entry> pairs) throws IOException {
+
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+
+        try {
+            ByteBuffer buf = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+
+            buf.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(shapes.size())
+                    .putInt(pairs.size());
+
+            for (long o : offsets) {
+                if (buf.remaining() < 8) {
+                    flush(channel, buf);
+                }
+                buf.putLong(o);
+            }
+
+            for (Shape s : shapes) {
+                int size = sizeOfRecord(s);
+
+                if (buf.remaining() < size) {
+                    flush(channel, buf);
+                }
+
+                if (size > buf.capacity()) {
+                    ByteBuffer large = ByteBuffer.allocate(size);
+                    ShapeCodec.writeRecord(large, s);
+                    flush(channel, large);
+                }
+                else {
+                    ShapeCodec.writeRecord(buf, s);
+                }
+            }
+
+            for (GJKCache.Entry pair : pairs) {
+                if (buf.remaining() < PAIR_SIZE) {
+                    flush(channel, buf);
+                }
+                buf.putInt(indices.get(pair.s1)).putInt(indices.get(pair.s2))
+                        .put((byte) (pair.colliding ? 1 : 0));
+            }
+
+            flush(channel, buf);
+
+            // Make sure the data is on disk before the file is renamed over
+            // the old snapshot.
+            channel.force(true);
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Open the snapshot in the file 'path'. The file is mapped into memory
+     * and no shapes are decoded until they are requested.
+     *
+     * @param path the snapshot file.
+     * @return the opened snapshot.
+     * @throws IOException if the file cannot be read or is not a snapshot.
+     */
+    public static SceneSnapshot open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+
+        try {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Scene snapshot too large to map");
+            }
+
+            MappedByteBuffer mapped = channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            return new SceneSnapshot(mapped);
+        }
+        finally {
+            // The mapping stays valid after the channel is closed.
+            channel.close();
+        }
+    }
+
+    /**
+     * @return the number of shapes in the snapshot.
+     */
+    public int size() {
+        return shapeCount;
+    }
+
+    /**
+     * Get a shape from the snapshot, decoding it if this is the first time it
+     * has been requested. Every call for the same index returns the same
+     * shape.
+     *
+     * @param index the index of the shape, in the order it was written.
+     * @return the shape.
+     * @throws IOException if the shape's record is corrupt.
+     */
+    public Shape get(int index) throws IOException {
+        Shape s = shapes.get(index);
+
+        if (s == null) {
+            ByteBuffer buf = mapped.duplicate();
+            buf.position((int) offsets[index]);
+            buf.limit((int) offsets[index + 1]);
+
+            // Records are only checked as they are decoded, and must fill
+            // exactly the space between their offset and the next one.
+            try {
+                s = ShapeCodec.readRecord(buf);
+            }
+            catch (BufferUnderflowException e) {
+                throw new IOException("Corrupt scene snapshot: shape "
+                        + index + " is truncated", e);
+            }
+            catch (IllegalArgumentException e) {
+                throw new IOException("Corrupt scene snapshot: shape "
+                        + index + ": " + e.getMessage(), e);
+            }
+
+            if (buf.hasRemaining()) {
+                throw new IOException("Corrupt scene snapshot: shape "
+                        + index + " is shorter than its record");
+            }
+
+            // Another thread may have decoded it first.
+            if (!shapes.compareAndSet(index, null, s)) {
+                s = shapes.get(index);
+            }
+        }
+
+        return s;
+    }
+
+    /**
+     * @return every shape in the snapshot, decoding any which have not been
+     *         requested yet.
+     * @throws IOException if any shape's record is corrupt.
+     */
+    public List<Shape> getShapes() throws IOException {
+        List<Shape> list = new ArrayList<Shape>(shapeCount);
+        for (int i = 0; i < shapeCount; i++) {
+            list.add(get(i));
+        }
+        return list;
+    }
+
+    /**
+     * @return the number of cached pair results in the snapshot.
+     */
+    public int getPairCount() {
+        return pairCount;
+    }
+
+    /**
+     * Store every pair result held by the snapshot in the cache 'cache'. The
+     * shapes of those pairs are decoded as needed. <br>
+     * The restored shapes are new objects, so pairs map to different slots
+     * than they did when the snapshot was written, and pairs which now share
+     * a slot evict each other. Even with four times as many slots as
+     * getPairCount(), about one pair in ten is lost, so compare the result
+     * with getPairCount() to see how warm the cache really is.
+     *
+     * @param cache the cache to warm up.
+     * @return the number of pair results still held by the cache once all
+     *         have been stored.
+     * @throws IOException if the shape of any pair is corrupt.
+     */
+    public int restoreInto(GJKCache cache) throws IOException {
+        Shape[][] pairs = new Shape[pairCount][];
+
+        ByteBuffer buf = mapped.duplicate();
+        buf.position((int) offsets[shapeCount]);
+
+        for (int i = 0; i < pairCount; i++) {
+            Shape s1 = get(buf.getInt());
+            Shape s2 = get(buf.getInt());
+            cache.put(s1, s2, buf.get() != 0);
+            pairs[i] = new Shape[] { s1, s2 };
+        }
+
+        int restored = 0;
+        for (Shape[] pair : pairs) {
+            if (cache.holds(pair[0], pair[1])) {
+                restored++;
+            }
+        }
+
+        return restored;
+    }
+
+    /**
+     * Get the number of bytes needed to store the shape s and its hulls.
+     */
+    private static int sizeOfRecord(Shape s) {
+        int size = ShapeCodec.sizeOfRecord(s);
+
+        if (size < 0) {
+            throw new IllegalArgumentException("Unsupported shape type: "
+                    + s.getClass().getName());
+        }
+
+        return size;
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buf)
+            throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        buf.clear();
+    }
+}
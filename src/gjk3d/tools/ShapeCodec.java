@@ -0,0 +1,275 @@
+package gjk3d.tools;
+
+import gjk3d.entities.Polyhedron;
+import gjk3d.entities.Shape;
+import gjk3d.entities.Sphere;
+import gjk3d.entities.Vec3D;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Packs shapes into, and unpacks them from, byte buffers. Used by the binary
+ * file formats in this package. <br>
+ * A shape is stored as a one byte type tag followed by its geometry. Spheres
+ * store their center and radius. Polyhedra store their vertex count followed
+ * by the packed x, y, z of each vertex. <br>
+ * A record is a shape followed, for polyhedra, by a flags byte and whichever
+ * of its level of detail hulls are set, each stored as a record itself. <br>
+ * Reading checks every count, tag and flag against the bytes left in the
+ * buffer, and throws an IllegalArgumentException or BufferUnderflowException
+ * on malformed data rather than allocating whatever a corrupt count asks for.
+ */
+final class ShapeCodec {
+
+    static final byte SPHERE = 1;
+    static final byte POLYHEDRON = 2;
+
+    static final byte HAS_OUTER_HULL = 1;
+    static final byte HAS_INNER_HULL = 2;
+
+    /**
+     * How deeply hulls may nest inside each other in a record.
+     */
+    private static final int MAX_HULL_DEPTH = 64;
+
+    private ShapeCodec() {
+    }
+
+    /**
+     * Get the number of bytes needed to store the shape s.
+     *
+     * @param s the shape.
+     * @return the encoded size of s, or -1 if s is of a type which cannot be
+     *         stored.
+     */
+    static int sizeOf(Shape s) {
+        if (s instanceof Sphere) {
+            return 1 + 4 * 8;
+        }
+        if (s instanceof Polyhedron) {
+            return sizeOfVertices(((Polyhedron) s).getVertices().length) + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Get the number of bytes needed to store a packed vertex array.
+     *
+     * @param count the number of vertices.
+     * @return the encoded size of the vertices, including their count.
+     */
+    static int sizeOfVertices(int count) {
+        return 4 + count * 3 * 8;
+    }
+
+    /**
+     * Write the shape s into buf. The buffer must have at least sizeOf(s)
+     * bytes remaining.
+     *
+     * @param buf the buffer to write to.
+     * @param s the shape to write.
+     */
+    static void write(ByteBuffer buf, Shape s) {
+        if (s instanceof Sphere) {
+            Sphere sphere = (Sphere) s;
+            buf.put(SPHERE);
+            putVec(buf, sphere.getPos());
+            buf.putDouble(sphere.getRadius());
+        }
+        else if (s instanceof Polyhedron) {
+            buf.put(POLYHEDRON);
+            writeVertices(buf, ((Polyhedron) s).getVertices());
+        }
+        else {
+            throw new IllegalArgumentException("Unsupported shape type: "
+                    + s.getClass().getName());
+        }
+    }
+
+    /**
+     * Read a shape previously written with write().
+     *
+     * @param buf the buffer to read from.
+     * @return a new shape equal to the one written.
+     * @throws IllegalArgumentException if the data is not a valid shape.
+     */
+    static Shape read(ByteBuffer buf) {
+        byte type = buf.get();
+
+        switch (type) {
+            case SPHERE:
+                Vec3D pos = getVec(buf);
+                double radius = buf.getDouble();
+                if (!(radius >= 0)) {
+                    throw new IllegalArgumentException("Invalid sphere "
+                            + "radius: " + radius);
+                }
+                return new Sphere(pos, radius);
+            case POLYHEDRON:
+                Vec3D[] vertices = readVertices(buf);
+                if (vertices.length == 0) {
+                    throw new IllegalArgumentException("Polyhedron has no "
+                            + "vertices");
+                }
+                return new Polyhedron(vertices);
+            default:
+                throw new IllegalArgumentException("Unknown shape type: "
+                        + type);
+        }
+    }
+
+    /**
+     * Get the number of bytes needed to store the shape s along with its
+     * level of detail hulls.
+     *
+     * @param s the shape.
+     * @return the encoded size of the record for s, or -1 if s is of a type
+     *         which cannot be stored.
+     */
+    static int sizeOfRecord(Shape s) {
+        int size = sizeOf(s);
+
+        if (size >= 0 && s instanceof Polyhedron) {
+            Polyhedron p = (Polyhedron) s;
+            size += 1;
+
+            if (p.getOuterHull() != null) {
+                size += sizeOfRecord(p.getOuterHull());
+            }
+            if (p.getInnerHull() != null) {
+                size += sizeOfRecord(p.getInnerHull());
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * Write the shape s and its level of detail hulls into buf. The buffer
+     * must have at least sizeOfRecord(s) bytes remaining.
+     *
+     * @param buf the buffer to write to.
+     * @param s the shape to write.
+     */
+    static void writeRecord(ByteBuffer buf, Shape s) {
+        write(buf, s);
+
+        if (s instanceof Polyhedron) {
+            Polyhedron p = (Polyhedron) s;
+
+            byte flags = 0;
+            if (p.getOuterHull() != null) {
+                flags |= HAS_OUTER_HULL;
+            }
+            if (p.getInnerHull() != null) {
+                flags |= HAS_INNER_HULL;
+            }
+            buf.put(flags);
+
+            if (p.getOuterHull() != null) {
+                writeRecord(buf, p.getOuterHull());
+            }
+            if (p.getInnerHull() != null) {
+                writeRecord(buf, p.getInnerHull());
+            }
+        }
+    }
+
+    /**
+     * Read a shape and its level of detail hulls previously written with
+     * writeRecord().
+     *
+     * @param buf the buffer to read from.
+     * @return a new shape equal to the one written, with its hulls set.
+     * @throws IllegalArgumentException if the data is not a valid record.
+     */
+    static Shape readRecord(ByteBuffer buf) {
+        return readRecord(buf, 0);
+    }
+
+    private static Shape readRecord(ByteBuffer buf, int depth) {
+        if (depth > MAX_HULL_DEPTH) {
+            throw new IllegalArgumentException("Hulls nested too deeply");
+        }
+
+        Shape s = read(buf);
+
+        if (s instanceof Polyhedron) {
+            Polyhedron p = (Polyhedron) s;
+            byte flags = buf.get();
+
+            if ((flags & ~(HAS_OUTER_HULL | HAS_INNER_HULL)) != 0) {
+                throw new IllegalArgumentException("Unknown hull flags: "
+                        + flags);
+            }
+
+            if ((flags & HAS_OUTER_HULL) != 0) {
+                p.setOuterHull(readHull(buf, depth));
+            }
+            if ((flags & HAS_INNER_HULL) != 0) {
+                p.setInnerHull(readHull(buf, depth));
+            }
+        }
+
+        return s;
+    }
+
+    private static Polyhedron readHull(ByteBuffer buf, int depth) {
+        Shape hull = readRecord(buf, depth + 1);
+
+        if (!(hull instanceof Polyhedron)) {
+            throw new IllegalArgumentException("Hull is not a polyhedron");
+        }
+
+        return (Polyhedron) hull;
+    }
+
+    /**
+     * Write the count and packed coordinates of the vertices into buf.
+     *
+     * @param buf the buffer to write to.
+     * @param vertices the vertices to write.
+     */
+    static void writeVertices(ByteBuffer buf, Vec3D[] vertices) {
+        buf.putInt(vertices.length);
+        for (Vec3D v : vertices) {
+            putVec(buf, v);
+        }
+    }
+
+    /**
+     * Read a vertex array previously written with writeVertices().
+     *
+     * @param buf the buffer to read from.
+     * @return the vertices.
+     * @throws IllegalArgumentException if the count is negative or more than
+     *             the buffer holds.
+     */
+    static Vec3D[] readVertices(ByteBuffer buf) {
+        int count = buf.getInt();
+
+        // Check against the bytes actually left before allocating anything.
+        if (count < 0 || count > buf.remaining() / (3 * 8)) {
+            throw new IllegalArgumentException("Invalid vertex count: "
+                    + count);
+        }
+
+        Vec3D[] vertices = new Vec3D[count];
+        for (int i = 0; i < vertices.length; i++) {
+            vertices[i] = getVec(buf);
+        }
+        return vertices;
+    }
+
+    private static void putVec(ByteBuffer buf, Vec3D v) {
+        buf.putDouble(v.getX());
+        buf.putDouble(v.getY());
+        buf.putDouble(v.getZ());
+    }
+
+    private static Vec3D getVec(ByteBuffer buf) {
+        double x = buf.getDouble();
+        double y = buf.getDouble();
+        return new Vec3D(x, y, buf.getDouble());
+    }
+}